@@ -0,0 +1,118 @@
+package com.ntx.converttiff;
+
+import android.graphics.Bitmap;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times JpegEncoder against Bitmap.compress on the device, at the settings
+ * SaveImageTask uses. Results go to logcat under the {@code _DEBUG_} tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class JpegEncoderBenchmark {
+    private static final String TAG = "_DEBUG_";
+
+    // 12 MP, 48 MB of ARGB: large enough to matter, small enough for a
+    // default (non-largeHeap) app heap.
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    private static final int QUALITY = 100;
+    private static final int RUNS = 5;
+
+    private static final Cancellable NEVER = new Cancellable() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    @Test
+    public void encoderVsBitmapCompress() throws IOException {
+        final Bitmap bitmap = createTestBitmap();
+        try {
+            long[] compress = new long[RUNS];
+            long[] encoder = new long[RUNS];
+            long compressBytes = 0;
+            long encoderBytes = 0;
+            JpegEncoder jpegEncoder = new JpegEncoder(QUALITY, JpegEncoder.Subsampling.YUV420, false);
+            JpegEncoder.RowReader reader = new JpegEncoder.RowReader() {
+                @Override
+                public void readRows(int[] argb, int y, int rows) {
+                    bitmap.getPixels(argb, 0, WIDTH, 0, y, WIDTH, rows);
+                }
+            };
+
+            // Run 0 of each is a warm-up and is not reported.
+            for (int i = 0; i < RUNS; i++) {
+                CountingStream out = new CountingStream();
+                long start = System.nanoTime();
+                bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+                compress[i] = System.nanoTime() - start;
+                compressBytes = out.count;
+
+                out = new CountingStream();
+                start = System.nanoTime();
+                jpegEncoder.encode(reader, WIDTH, HEIGHT, out, NEVER);
+                encoder[i] = System.nanoTime() - start;
+                encoderBytes = out.count;
+            }
+
+            Log.d(TAG, "JpegEncoderBenchmark " + WIDTH + "x" + HEIGHT + " q" + QUALITY + " on "
+                    + Runtime.getRuntime().availableProcessors() + " cores:"
+                    + " Bitmap.compress median " + medianMillis(compress) + " ms, " + compressBytes + " bytes;"
+                    + " JpegEncoder median " + medianMillis(encoder) + " ms, " + encoderBytes + " bytes");
+            assertTrue(compressBytes > 0 && encoderBytes > 0);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Smooth gradients with some noise, roughly as hard to code as a scan.
+     */
+    private static Bitmap createTestBitmap() {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Random random = new Random(1);
+        int[] row = new int[WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = (x * 255 / WIDTH + random.nextInt(8)) & 0xFF;
+                int g = y * 255 / HEIGHT;
+                int b = ((x ^ y) >> 3) & 0xFF;
+                row[x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+            bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+        }
+        return bitmap;
+    }
+
+    private static long medianMillis(long[] nanos) {
+        long[] timed = Arrays.copyOfRange(nanos, 1, nanos.length);
+        Arrays.sort(timed);
+        return timed[timed.length / 2] / 1000000;
+    }
+
+    private static final class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
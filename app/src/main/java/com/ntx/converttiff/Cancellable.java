@@ -0,0 +1,9 @@
+package com.ntx.converttiff;
+
+/**
+ * Polled by long-running work at strip and band boundaries. AsyncTask
+ * subclasses satisfy this through their own {@code isCancelled()}.
+ */
+interface Cancellable {
+    boolean isCancelled();
+}
@@ -1,37 +1,187 @@
 package com.ntx.converttiff;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.util.Log;
 
 import org.beyka.tiffbitmapfactory.TiffBitmapFactory;
 
 import java.io.File;
+import java.io.IOException;
 
-public class DecodeTiffTask extends AsyncTask<File, Void, Bitmap> {
+public class DecodeTiffTask extends AsyncTask<File, Void, Bitmap> implements Cancellable {
+    private static final String TAG = "_DEBUG_";
 
+    // Files past this size, or any BigTIFF, are decoded strip by strip.
+    private static final long LARGE_FILE_BYTES = Integer.MAX_VALUE;
+
+    private final Context mContext;
     private Callback mCallback;
+    private TiffFormatException.Code mError;
+    private int mSampleSize = 1;
+    private volatile TiffBitmapFactory.Options mOptions;
 
-    DecodeTiffTask(Callback callback) {
+    DecodeTiffTask(Context context, Callback callback) {
+        this.mContext = context.getApplicationContext();
         this.mCallback = callback;
     }
 
     interface Callback {
-        void onDecodeComplete(Bitmap bitmap);
+        /**
+         * @param sampleSize 1, or the downsampling applied because the full
+         *                   image did not fit in memory
+         * @param error      why the file was rejected before decoding, or null
+         */
+        void onDecodeComplete(Bitmap bitmap, int sampleSize, TiffFormatException.Code error);
+    }
+
+    /**
+     * Cancels the task and stops a running TiffBitmapFactory decode, which
+     * never polls {@link #isCancelled()} itself.
+     */
+    void cancelDecode() {
+        cancel(true);
+        TiffBitmapFactory.Options options = mOptions;
+        if (options != null) {
+            options.stop();
+        }
     }
 
     @Override
     protected Bitmap doInBackground(File... files) {
+        File file = files[0];
+        if (!MemoryGovernor.awaitAdmission(this))
+            return null;
+
+        int sampleSize;
+        TiffFile tiff = null;
+        try {
+            tiff = TiffFile.open(file);
+            TiffFile.Directory directory = TiffValidator.checkStructure(tiff);
+            boolean stripDecode = tiff.isBigTiff() || file.length() > LARGE_FILE_BYTES;
+            TiffValidator.checkImage(tiff, directory, stripDecode);
+            sampleSize = sampleSizeFor(Math.max(1, directory.getLong(TiffFile.TAG_IMAGE_WIDTH, 1)),
+                    Math.max(1, directory.getLong(TiffFile.TAG_IMAGE_LENGTH, 1)), decodeBudget());
+            mSampleSize = sampleSize;
+            if (stripDecode)
+                return decodeStripwise(tiff, directory, sampleSize);
+        } catch (TiffFormatException e) {
+            Log.d(TAG, "Rejected TIFF: " + e.getMessage());
+            mError = e.code;
+            return null;
+        } catch (IOException e) {
+            Log.d(TAG, "Error decoding TIFF: " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(tiff);
+        }
+
         TiffBitmapFactory.Options options = new TiffBitmapFactory.Options();
         options.inJustDecodeBounds = false;
-        Bitmap bitmap = TiffBitmapFactory.decodeFile(files[0], options);
+        options.inSampleSize = sampleSize;
+        mOptions = options;
+        // cancelDecode() may have run before mOptions was set.
+        if (isCancelled())
+            return null;
+        Bitmap bitmap = TiffBitmapFactory.decodeFile(file, options);
+        mOptions = null;
+        if (bitmap != null && isCancelled()) {
+            bitmap.recycle();
+            return null;
+        }
         return bitmap;
     }
 
+    /**
+     * The power-of-two downsampling that makes a {@code width} x {@code height}
+     * ARGB_8888 bitmap fit in {@code budget} bytes: 1 whenever the full image
+     * fits.
+     */
+    static int sampleSizeFor(long width, long height, long budget) {
+        int sampleSize = 1;
+        while (sampleSize < (1 << 30)
+                && (width + sampleSize - 1) / sampleSize > budget / 4 / ((height + sampleSize - 1) / sampleSize)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Bytes the decoded bitmap may take. Before Android 8 its pixels live on
+     * the Java heap, so that is the heap still free. From Android 8 they are
+     * native, so it is the RAM free above the low-memory threshold, capped at
+     * the 2 GB a Bitmap can hold.
+     */
+    private long decodeBudget() {
+        long budget;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            Runtime runtime = Runtime.getRuntime();
+            budget = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        } else {
+            ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+            ((ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryInfo(memoryInfo);
+            budget = Math.min(Integer.MAX_VALUE, memoryInfo.availMem - memoryInfo.threshold);
+        }
+        return Math.max(0, budget);
+    }
+
+    /**
+     * Decodes the first image of the file strip by strip, keeping every
+     * {@code sampleSize}-th pixel. Stops between rows when cancelled.
+     */
+    private Bitmap decodeStripwise(TiffFile tiff, TiffFile.Directory directory, int sampleSize) throws IOException {
+        TiffStripReader reader = new TiffStripReader(tiff, directory);
+        int width = reader.getWidth();
+        int height = reader.getHeight();
+        int outWidth = (width + sampleSize - 1) / sampleSize;
+        int outHeight = (height + sampleSize - 1) / sampleSize;
+        Log.d(TAG, "decodeStripwise: " + width + "x" + height + " sampleSize=" + sampleSize);
+
+        Bitmap bitmap = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        int[] row = new int[outWidth];
+        boolean decoded = false;
+        try {
+            for (int y = 0; y < outHeight; y++) {
+                if (isCancelled())
+                    return null;
+                reader.readRow(y * sampleSize, row, 0, 0, sampleSize, outWidth);
+                bitmap.setPixels(row, 0, outWidth, 0, y, outWidth, 1);
+            }
+            decoded = true;
+            return bitmap;
+        } finally {
+            reader.releaseBuffers();
+            // Cancelled, or a read failed (cancel(true) can surface as a
+            // ClosedByInterruptException): nothing else will see the bitmap.
+            if (!decoded) {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    private static void closeQuietly(TiffFile tiff) {
+        if (tiff == null)
+            return;
+        try {
+            tiff.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    protected void onCancelled(Bitmap bitmap) {
+        if (bitmap != null) {
+            bitmap.recycle();
+        }
+    }
+
     @Override
     protected void onPostExecute(Bitmap bitmap) {
         super.onPostExecute(bitmap);
-        mCallback.onDecodeComplete(bitmap);
+        mCallback.onDecodeComplete(bitmap, mSampleSize, mError);
     }
 }
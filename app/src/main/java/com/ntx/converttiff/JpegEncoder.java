@@ -0,0 +1,812 @@
+package com.ntx.converttiff;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baseline JFIF encoder that splits the image into bands of whole MCU rows and
+ * entropy-codes each band on its own worker. Every band is one restart interval,
+ * so the segments can be concatenated with RSTn markers in between.
+ */
+public class JpegEncoder {
+
+    /**
+     * Supplies ARGB pixels to the encoder. Called from worker threads, possibly
+     * concurrently for different row ranges.
+     */
+    public interface RowReader {
+        void readRows(int[] argb, int y, int rows) throws IOException;
+    }
+
+    public enum Subsampling {
+        YUV444(1, 1),
+        YUV422(2, 1),
+        YUV420(2, 2);
+
+        final int h;
+        final int v;
+
+        Subsampling(int h, int v) {
+            this.h = h;
+            this.v = v;
+        }
+    }
+
+    private static final int MAX_DIMENSION = 65535;
+    private static final int MAX_BAND_PIXELS = 1 << 20;
+    private static final int BANDS_PER_THREAD = 4;
+
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int[] LUMA_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private static final int[] CHROMA_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    private static final int[] DC_LUMA_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMA_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private static final int[] AC_LUMA_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final int[] AC_CHROMA_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    // Fixed-point AAN DCT (as in libjpeg's jfdctfst), with two extra bits of
+    // precision carried from the input through both passes.
+    private static final int CONST_BITS = 13;
+    private static final int PASS1_BITS = 2;
+    private static final int FIX_0_382683433 = 3135;
+    private static final int FIX_0_541196100 = 4433;
+    private static final int FIX_0_707106781 = 5793;
+    private static final int FIX_1_306562965 = 10703;
+
+    // The AAN outputs are scaled by 8 * AAN_SCALE[u] * AAN_SCALE[v]; the
+    // quantization reciprocals undo that, so no separate scaling pass is needed.
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+    private static final int RECIPROCAL_BITS = 32;
+
+    private final Subsampling mSubsampling;
+    private final boolean mOptimizeHuffman;
+    private final int mThreads;
+
+    private final int[] mLumaQuant = new int[64];
+    private final int[] mChromaQuant = new int[64];
+    private final long[] mLumaReciprocals = new long[64];
+    private final long[] mChromaReciprocals = new long[64];
+
+    public JpegEncoder(int quality, Subsampling subsampling, boolean optimizeHuffman) {
+        this(quality, subsampling, optimizeHuffman, Runtime.getRuntime().availableProcessors());
+    }
+
+    public JpegEncoder(int quality, Subsampling subsampling, boolean optimizeHuffman, int threads) {
+        if (quality < 1 || quality > 100)
+            throw new IllegalArgumentException("quality must be in 1..100: " + quality);
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+
+        this.mSubsampling = subsampling;
+        this.mOptimizeHuffman = optimizeHuffman;
+        this.mThreads = threads;
+
+        scaleQuantTable(LUMA_QUANT, mLumaQuant, quality);
+        scaleQuantTable(CHROMA_QUANT, mChromaQuant, quality);
+        foldScaleFactors(mLumaQuant, mLumaReciprocals);
+        foldScaleFactors(mChromaQuant, mChromaReciprocals);
+    }
+
+    /**
+     * Whether the image fits in a baseline JPEG frame.
+     */
+    public static boolean canEncode(int width, int height) {
+        return width >= 1 && height >= 1 && width <= MAX_DIMENSION && height <= MAX_DIMENSION;
+    }
+
+    /**
+     * @throws CancellationException if {@code cancellable} reports cancellation
+     *                               at a band boundary; the output is then incomplete
+     */
+    public void encode(final RowReader reader, int width, int height, OutputStream out,
+                       Cancellable cancellable) throws IOException {
+        if (!canEncode(width, height))
+            throw new IllegalArgumentException("Unsupported JPEG size: " + width + "x" + height);
+
+        final Layout layout = new Layout(width, height, mSubsampling, mThreads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mThreads, layout.bands));
+        try {
+            HuffmanTable[] tables;
+            if (mOptimizeHuffman) {
+                tables = buildOptimalTables(executor, reader, layout, cancellable);
+            } else {
+                tables = new HuffmanTable[]{
+                        new HuffmanTable(DC_LUMA_BITS, DC_VALUES),
+                        new HuffmanTable(AC_LUMA_BITS, AC_LUMA_VALUES),
+                        new HuffmanTable(DC_CHROMA_BITS, DC_VALUES),
+                        new HuffmanTable(AC_CHROMA_BITS, AC_CHROMA_VALUES)
+                };
+            }
+
+            writeHeaders(out, layout, tables);
+            writeScan(executor, reader, layout, tables, out, cancellable);
+            out.write(0xFF);
+            out.write(0xD9);
+        } finally {
+            shutdown(executor);
+        }
+    }
+
+    /**
+     * Stops the workers and waits for them, so the caller may free the pixel
+     * source as soon as encode returns, even after cancellation.
+     */
+    private static void shutdown(ExecutorService executor) {
+        executor.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS))
+                    break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private HuffmanTable[] buildOptimalTables(ExecutorService executor, final RowReader reader,
+                                              final Layout layout, final Cancellable cancellable) throws IOException {
+        final long[][] freq = new long[4][257];
+        runBands(executor, layout, cancellable, new BandJob<long[][]>() {
+            @Override
+            public Callable<long[][]> create(final int band) {
+                return new Callable<long[][]>() {
+                    @Override
+                    public long[][] call() throws Exception {
+                        EntropyCoder coder = new EntropyCoder(null);
+                        processBand(reader, layout, band, coder, cancellable);
+                        return coder.freq;
+                    }
+                };
+            }
+
+            @Override
+            public void collect(long[][] bandFreq) {
+                for (int t = 0; t < 4; t++) {
+                    for (int s = 0; s < 256; s++) {
+                        freq[t][s] += bandFreq[t][s];
+                    }
+                }
+            }
+        });
+
+        HuffmanTable[] tables = new HuffmanTable[4];
+        for (int t = 0; t < 4; t++) {
+            tables[t] = HuffmanTable.optimal(freq[t]);
+        }
+        return tables;
+    }
+
+    private void writeScan(ExecutorService executor, final RowReader reader, final Layout layout,
+                           final HuffmanTable[] tables, final OutputStream out,
+                           final Cancellable cancellable) throws IOException {
+        runBands(executor, layout, cancellable, new BandJob<byte[]>() {
+            private int mWritten;
+
+            @Override
+            public Callable<byte[]> create(final int band) {
+                return new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        EntropyCoder coder = new EntropyCoder(tables);
+                        processBand(reader, layout, band, coder, cancellable);
+                        return coder.finish();
+                    }
+                };
+            }
+
+            @Override
+            public void collect(byte[] segment) throws IOException {
+                out.write(segment);
+                if (++mWritten < layout.bands) {
+                    out.write(0xFF);
+                    out.write(0xD0 + ((mWritten - 1) & 7));
+                }
+            }
+        });
+    }
+
+    private interface BandJob<T> {
+        Callable<T> create(int band);
+
+        void collect(T result) throws IOException;
+    }
+
+    /**
+     * Runs one task per band and hands results to the job in band order. At most
+     * one band per worker is in flight, so memory does not grow with image size.
+     * The worker count is re-read from {@link MemoryGovernor} before each band,
+     * which lowers concurrency under memory pressure and raises it again after.
+     */
+    private <T> void runBands(ExecutorService executor, Layout layout, Cancellable cancellable,
+                              BandJob<T> job) throws IOException {
+        ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < layout.bands || !pending.isEmpty()) {
+                if (cancellable.isCancelled())
+                    throw new CancellationException("JPEG encoding cancelled");
+                int maxInFlight = MemoryGovernor.maxWorkers(mThreads);
+                while (next < layout.bands && pending.size() < maxInFlight) {
+                    pending.add(executor.submit(job.create(next++)));
+                }
+                job.collect(pending.poll().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("JPEG encoding interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } finally {
+            for (Future<T> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Encodes one band. Pixels are fetched and converted one MCU row at a time,
+     * so the scratch memory is a few rows of the image whatever the band size.
+     */
+    private void processBand(RowReader reader, Layout layout, int band, EntropyCoder coder,
+                             Cancellable cancellable) throws IOException {
+        if (cancellable.isCancelled())
+            throw new CancellationException("JPEG encoding cancelled");
+
+        int h = mSubsampling.h;
+        int v = mSubsampling.v;
+        int mcuWidth = 8 * h;
+        int mcuHeight = 8 * v;
+        int width = layout.width;
+        int stride = layout.mcuCols * mcuWidth;
+
+        int firstMcuRow = band * layout.mcuRowsPerBand;
+        int lastMcuRow = Math.min(firstMcuRow + layout.mcuRowsPerBand, layout.mcuRows);
+        int[] argb = new int[width * mcuHeight];
+        int[] pixels = new int[stride * mcuHeight];
+        int[] block = new int[64];
+        int[] coefficients = new int[64];
+        int chromaStride = stride / h;
+        int[] cb = new int[chromaStride * 8];
+        int[] cr = new int[chromaStride * 8];
+
+        for (int mcuRow = firstMcuRow; mcuRow < lastMcuRow; mcuRow++) {
+            int y0 = mcuRow * mcuHeight;
+            int rows = Math.min(mcuHeight, layout.height - y0);
+            reader.readRows(argb, y0, rows);
+            // Pad to whole MCUs by replicating the right and bottom edges.
+            for (int y = 0; y < mcuHeight; y++) {
+                int src = Math.min(y, rows - 1) * width;
+                int dst = y * stride;
+                System.arraycopy(argb, src, pixels, dst, width);
+                Arrays.fill(pixels, dst + width, dst + stride, argb[src + width - 1]);
+            }
+            downsampleChroma(pixels, stride, h, v, cb, cr);
+
+            for (int px = 0; px < stride; px += mcuWidth) {
+                for (int by = 0; by < v; by++) {
+                    for (int bx = 0; bx < h; bx++) {
+                        lumaBlock(pixels, stride, px + bx * 8, by * 8, block);
+                        transform(block, mLumaReciprocals, coefficients);
+                        coder.encodeBlock(coefficients, 0);
+                    }
+                }
+                copyBlock(cb, chromaStride, px / h, block);
+                transform(block, mChromaReciprocals, coefficients);
+                coder.encodeBlock(coefficients, 1);
+                copyBlock(cr, chromaStride, px / h, block);
+                transform(block, mChromaReciprocals, coefficients);
+                coder.encodeBlock(coefficients, 2);
+            }
+        }
+    }
+
+    private static void lumaBlock(int[] pixels, int stride, int x0, int y0, int[] block) {
+        for (int y = 0; y < 8; y++) {
+            int row = (y0 + y) * stride + x0;
+            for (int x = 0; x < 8; x++) {
+                int c = pixels[row + x];
+                int lum = (19595 * ((c >> 16) & 0xFF) + 38470 * ((c >> 8) & 0xFF) + 7471 * (c & 0xFF)
+                        + 32768) >> 16;
+                block[y * 8 + x] = (lum - 128) << PASS1_BITS;
+            }
+        }
+    }
+
+    /**
+     * Converts one MCU row to Cb and Cr, averaging each h x v group of pixels.
+     * The conversion is linear, so the group's RGB is summed first.
+     */
+    private static void downsampleChroma(int[] pixels, int stride, int h, int v, int[] cb, int[] cr) {
+        int chromaStride = stride / h;
+        // 16.16 fixed point, divided by h * v and scaled to the DCT's input precision.
+        int shift = 16 - PASS1_BITS + Integer.numberOfTrailingZeros(h * v);
+        int round = 1 << (shift - 1);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < chromaStride; x++) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int dy = 0; dy < v; dy++) {
+                    int p = (y * v + dy) * stride + x * h;
+                    for (int dx = 0; dx < h; dx++) {
+                        int c = pixels[p + dx];
+                        r += (c >> 16) & 0xFF;
+                        g += (c >> 8) & 0xFF;
+                        b += c & 0xFF;
+                    }
+                }
+                cb[y * chromaStride + x] = (-11059 * r - 21709 * g + 32768 * b + round) >> shift;
+                cr[y * chromaStride + x] = (32768 * r - 27439 * g - 5329 * b + round) >> shift;
+            }
+        }
+    }
+
+    private static void copyBlock(int[] plane, int stride, int x0, int[] block) {
+        for (int y = 0; y < 8; y++) {
+            System.arraycopy(plane, y * stride + x0, block, y * 8, 8);
+        }
+    }
+
+    /**
+     * Fixed-point AAN forward DCT followed by quantization, leaving coefficients
+     * in zigzag order. Works in place on {@code block}.
+     */
+    private static void transform(int[] block, long[] reciprocals, int[] out) {
+        for (int i = 0; i < 64; i += 8) {
+            dct8(block, i, 1);
+        }
+        for (int i = 0; i < 8; i++) {
+            dct8(block, i, 8);
+        }
+        for (int k = 0; k < 64; k++) {
+            int value = block[ZIGZAG[k]];
+            long reciprocal = reciprocals[ZIGZAG[k]];
+            int q = value < 0
+                    ? -(int) ((-value * reciprocal + (1L << (RECIPROCAL_BITS - 1))) >> RECIPROCAL_BITS)
+                    : (int) ((value * reciprocal + (1L << (RECIPROCAL_BITS - 1))) >> RECIPROCAL_BITS);
+            int limit = k == 0 ? 2047 : 1023;
+            out[k] = Math.max(-limit, Math.min(limit, q));
+        }
+    }
+
+    /**
+     * One 8-point AAN pass over {@code d[o], d[o + step], ...}.
+     */
+    private static void dct8(int[] d, int o, int step) {
+        int tmp0 = d[o] + d[o + 7 * step];
+        int tmp7 = d[o] - d[o + 7 * step];
+        int tmp1 = d[o + step] + d[o + 6 * step];
+        int tmp6 = d[o + step] - d[o + 6 * step];
+        int tmp2 = d[o + 2 * step] + d[o + 5 * step];
+        int tmp5 = d[o + 2 * step] - d[o + 5 * step];
+        int tmp3 = d[o + 3 * step] + d[o + 4 * step];
+        int tmp4 = d[o + 3 * step] - d[o + 4 * step];
+
+        int tmp10 = tmp0 + tmp3;
+        int tmp13 = tmp0 - tmp3;
+        int tmp11 = tmp1 + tmp2;
+        int tmp12 = tmp1 - tmp2;
+        d[o] = tmp10 + tmp11;
+        d[o + 4 * step] = tmp10 - tmp11;
+        int z1 = multiply(tmp12 + tmp13, FIX_0_707106781);
+        d[o + 2 * step] = tmp13 + z1;
+        d[o + 6 * step] = tmp13 - z1;
+
+        tmp10 = tmp4 + tmp5;
+        tmp11 = tmp5 + tmp6;
+        tmp12 = tmp6 + tmp7;
+        int z5 = multiply(tmp10 - tmp12, FIX_0_382683433);
+        int z2 = multiply(tmp10, FIX_0_541196100) + z5;
+        int z4 = multiply(tmp12, FIX_1_306562965) + z5;
+        int z3 = multiply(tmp11, FIX_0_707106781);
+        int z11 = tmp7 + z3;
+        int z13 = tmp7 - z3;
+        d[o + 5 * step] = z13 + z2;
+        d[o + 3 * step] = z13 - z2;
+        d[o + step] = z11 + z4;
+        d[o + 7 * step] = z11 - z4;
+    }
+
+    private static int multiply(int value, int constant) {
+        return (value * constant + (1 << (CONST_BITS - 1))) >> CONST_BITS;
+    }
+
+    /**
+     * Reciprocals of the quantizer steps scaled by the AAN output factors and
+     * the extra input precision, so quantizing is one multiply and shift.
+     */
+    private static void foldScaleFactors(int[] quant, long[] reciprocals) {
+        for (int u = 0; u < 8; u++) {
+            for (int v = 0; v < 8; v++) {
+                double divisor = quant[u * 8 + v] * AAN_SCALE[u] * AAN_SCALE[v] * 8 * (1 << PASS1_BITS);
+                reciprocals[u * 8 + v] = Math.round((1L << RECIPROCAL_BITS) / divisor);
+            }
+        }
+    }
+
+    private static void scaleQuantTable(int[] base, int[] out, int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        for (int i = 0; i < 64; i++) {
+            out[i] = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+        }
+    }
+
+    private void writeHeaders(OutputStream out, Layout layout, HuffmanTable[] tables) throws IOException {
+        // SOI + APP0 (JFIF 1.01, no density, no thumbnail)
+        out.write(new byte[]{
+                (byte) 0xFF, (byte) 0xD8,
+                (byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0
+        });
+
+        writeMarker(out, 0xDB, 2 + 2 * 65);
+        out.write(0);
+        for (int k = 0; k < 64; k++) {
+            out.write(mLumaQuant[ZIGZAG[k]]);
+        }
+        out.write(1);
+        for (int k = 0; k < 64; k++) {
+            out.write(mChromaQuant[ZIGZAG[k]]);
+        }
+
+        writeMarker(out, 0xC0, 17);
+        out.write(8);
+        writeShort(out, layout.height);
+        writeShort(out, layout.width);
+        out.write(3);
+        out.write(new byte[]{
+                1, (byte) ((mSubsampling.h << 4) | mSubsampling.v), 0,
+                2, 0x11, 1,
+                3, 0x11, 1
+        });
+
+        int[] classAndId = {0x00, 0x10, 0x01, 0x11};
+        int length = 2;
+        for (HuffmanTable table : tables) {
+            length += 17 + table.values.length;
+        }
+        writeMarker(out, 0xC4, length);
+        for (int t = 0; t < 4; t++) {
+            out.write(classAndId[t]);
+            for (int bits : tables[t].bits) {
+                out.write(bits);
+            }
+            for (int value : tables[t].values) {
+                out.write(value);
+            }
+        }
+
+        if (layout.bands > 1) {
+            writeMarker(out, 0xDD, 4);
+            writeShort(out, layout.mcuCols * layout.mcuRowsPerBand);
+        }
+
+        writeMarker(out, 0xDA, 12);
+        out.write(new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+    }
+
+    private static void writeMarker(OutputStream out, int marker, int length) throws IOException {
+        out.write(0xFF);
+        out.write(marker);
+        writeShort(out, length);
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write((value >> 8) & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    private static final class Layout {
+        final int width;
+        final int height;
+        final int mcuCols;
+        final int mcuRows;
+        final int mcuRowsPerBand;
+        final int bands;
+
+        Layout(int width, int height, Subsampling subsampling, int threads) {
+            this.width = width;
+            this.height = height;
+            this.mcuCols = (width + 8 * subsampling.h - 1) / (8 * subsampling.h);
+            this.mcuRows = (height + 8 * subsampling.v - 1) / (8 * subsampling.v);
+
+            int mcuPixels = 64 * subsampling.h * subsampling.v;
+            int rowsPerBand = (mcuRows + threads * BANDS_PER_THREAD - 1) / (threads * BANDS_PER_THREAD);
+            // DRI holds the interval in 16 bits, and every band in flight holds
+            // its compressed segment in memory until it is written.
+            rowsPerBand = Math.min(rowsPerBand, 65535 / mcuCols);
+            rowsPerBand = Math.min(rowsPerBand, MAX_BAND_PIXELS / (mcuCols * mcuPixels));
+            this.mcuRowsPerBand = Math.max(1, rowsPerBand);
+            this.bands = (mcuRows + mcuRowsPerBand - 1) / mcuRowsPerBand;
+        }
+    }
+
+    /**
+     * Huffman-codes blocks for one restart interval. With no tables it only
+     * gathers symbol statistics, which feed {@link HuffmanTable#optimal(long[])}.
+     */
+    private static final class EntropyCoder {
+        final long[][] freq;
+        private final HuffmanTable[] mTables;
+        private final int[] mPredictors = new int[3];
+
+        private byte[] mBuffer = new byte[4096];
+        private int mLength;
+        private long mBitBuffer;
+        private int mBitCount;
+
+        EntropyCoder(HuffmanTable[] tables) {
+            this.mTables = tables;
+            this.freq = tables == null ? new long[4][257] : null;
+        }
+
+        void encodeBlock(int[] coefficients, int component) {
+            int dcTable = component == 0 ? 0 : 2;
+            int acTable = dcTable + 1;
+
+            int diff = coefficients[0] - mPredictors[component];
+            mPredictors[component] = coefficients[0];
+            emit(dcTable, 0, diff);
+
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int ac = coefficients[k];
+                if (ac == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    emit(acTable, 0xF0, 0);
+                    run -= 16;
+                }
+                emit(acTable, run << 4, ac);
+                run = 0;
+            }
+            if (run > 0) {
+                emit(acTable, 0x00, 0);
+            }
+        }
+
+        byte[] finish() {
+            if (mBitCount % 8 != 0) {
+                int padding = 8 - mBitCount % 8;
+                writeBits((1 << padding) - 1, padding);
+            }
+            flush(0);
+            return Arrays.copyOf(mBuffer, mLength);
+        }
+
+        /**
+         * Emits the symbol for {@code run} and the size of {@code value},
+         * followed by the value's bits, in one write.
+         */
+        private void emit(int table, int run, int value) {
+            int size = 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+            int symbol = run | size;
+            if (mTables == null) {
+                freq[table][symbol]++;
+                return;
+            }
+            HuffmanTable t = mTables[table];
+            int bits = value < 0 ? value - 1 : value;
+            writeBits((t.codes[symbol] << size) | (bits & ((1 << size) - 1)), t.sizes[symbol] + size);
+        }
+
+        private void writeBits(int value, int count) {
+            mBitBuffer = (mBitBuffer << count) | value;
+            mBitCount += count;
+            if (mBitCount >= 32) {
+                flush(8);
+            }
+        }
+
+        /**
+         * Moves whole bytes out of the bit buffer until fewer than
+         * {@code keep} bits remain, stuffing a zero after every 0xFF.
+         */
+        private void flush(int keep) {
+            if (mLength + 16 > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+            }
+            while (mBitCount >= Math.max(keep, 8)) {
+                int b = (int) (mBitBuffer >>> (mBitCount - 8)) & 0xFF;
+                mBitCount -= 8;
+                mBuffer[mLength++] = (byte) b;
+                if (b == 0xFF) {
+                    mBuffer[mLength++] = 0;
+                }
+            }
+        }
+    }
+
+    private static final class HuffmanTable {
+        final int[] bits;
+        final int[] values;
+        final int[] codes = new int[256];
+        final int[] sizes = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            this.bits = bits;
+            this.values = values;
+
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    codes[values[k]] = code++;
+                    sizes[values[k]] = length;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+        /**
+         * Builds a length-limited table from symbol counts (ITU T.81 Annex K.2).
+         */
+        static HuffmanTable optimal(long[] counts) {
+            long[] freq = Arrays.copyOf(counts, 257);
+            // Reserve one code point so no real code is all ones.
+            freq[256] = 1;
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            Arrays.fill(others, -1);
+
+            while (true) {
+                int c1 = -1;
+                long v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] != 0 && freq[i] <= v) {
+                        v = freq[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] != 0 && freq[i] <= v && i != c1) {
+                        v = freq[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0)
+                    break;
+
+                freq[c1] += freq[c2];
+                freq[c2] = 0;
+
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+
+            int[] lengthCounts = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    lengthCounts[codeSize[i]]++;
+                }
+            }
+            for (int i = 32; i > 16; i--) {
+                while (lengthCounts[i] > 0) {
+                    int j = i - 2;
+                    while (lengthCounts[j] == 0) {
+                        j--;
+                    }
+                    lengthCounts[i] -= 2;
+                    lengthCounts[i - 1]++;
+                    lengthCounts[j + 1] += 2;
+                    lengthCounts[j]--;
+                }
+            }
+            int longest = 16;
+            while (lengthCounts[longest] == 0) {
+                longest--;
+            }
+            lengthCounts[longest]--;
+
+            int[] bits = Arrays.copyOfRange(lengthCounts, 1, 17);
+            int total = 0;
+            for (int count : bits) {
+                total += count;
+            }
+            int[] values = new int[total];
+            int k = 0;
+            for (int length = 1; length <= 32 && k < total; length++) {
+                for (int symbol = 0; symbol < 256; symbol++) {
+                    if (codeSize[symbol] == length) {
+                        values[k++] = symbol;
+                    }
+                }
+            }
+            return new HuffmanTable(bits, values);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.ntx.converttiff;
 
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.os.Bundle;
@@ -17,6 +18,9 @@ public class MainActivity extends AppCompatActivity {
     private File mFile;
     private ProgressDialog mProgressDialog;
     private Bitmap.CompressFormat mSaveType;
+    private DecodeTiffTask mDecodeTiffTask;
+    private SaveImageTask mSaveImageTask;
+    private String mDownsampleNote = "";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -28,6 +32,13 @@ public class MainActivity extends AppCompatActivity {
         mProgressDialog.setIndeterminate(false);
         mProgressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
         mProgressDialog.setCancelable(false);
+        mProgressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, "Cancel", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                cancelConversion();
+                ((TextView) findViewById(R.id.tv_save_result)).setText("Cancelled.");
+            }
+        });
 
         magicFileChooser = new MagicFileChooser(MainActivity.this);
 
@@ -51,6 +62,36 @@ public class MainActivity extends AppCompatActivity {
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryGovernor.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryGovernor.onLowMemory();
+    }
+
+    @Override
+    protected void onDestroy() {
+        cancelConversion();
+        mProgressDialog.dismiss();
+        super.onDestroy();
+    }
+
+    private void cancelConversion() {
+        if (mDecodeTiffTask != null) {
+            mDecodeTiffTask.cancelDecode();
+            mDecodeTiffTask = null;
+        }
+        if (mSaveImageTask != null) {
+            mSaveImageTask.cancel(true);
+            mSaveImageTask = null;
+        }
+    }
+
 
     Button.OnClickListener onSaveButtonClickListener = new View.OnClickListener() {
         @Override
@@ -58,8 +99,8 @@ public class MainActivity extends AppCompatActivity {
 
             mProgressDialog.show();
 
-            DecodeTiffTask decodeTiffTask = new DecodeTiffTask(decodeTiffCallback);
-            decodeTiffTask.execute(mFile);
+            mDecodeTiffTask = new DecodeTiffTask(MainActivity.this, decodeTiffCallback);
+            mDecodeTiffTask.execute(mFile);
 
             switch (view.getId()) {
                 case R.id.btn_save_as_png:
@@ -74,23 +115,29 @@ public class MainActivity extends AppCompatActivity {
 
     DecodeTiffTask.Callback decodeTiffCallback = new DecodeTiffTask.Callback() {
         @Override
-        public void onDecodeComplete(Bitmap bitmap) {
+        public void onDecodeComplete(Bitmap bitmap, int sampleSize, TiffFormatException.Code error) {
+            mDecodeTiffTask = null;
             if (bitmap == null) {
                 mProgressDialog.dismiss();
-                ((TextView) findViewById(R.id.tv_save_result)).setText("Decode Fail.");
+                ((TextView) findViewById(R.id.tv_save_result)).setText(
+                        error == null ? "Decode Fail." : "Decode Fail: " + error);
                 return;
             }
-            SaveImageTask saveImageTask = new SaveImageTask(MainActivity.this, saveImageCallback);
-            saveImageTask.execute(bitmap, mSaveType);
+            mDownsampleNote = sampleSize == 1 ? "" : " (downsampled 1/" + sampleSize + " to "
+                    + bitmap.getWidth() + "x" + bitmap.getHeight() + " to fit in memory)";
+            mSaveImageTask = new SaveImageTask(MainActivity.this, bitmap, saveImageCallback);
+            mSaveImageTask.execute(mSaveType);
         }
     };
 
     SaveImageTask.Callback saveImageCallback = new SaveImageTask.Callback() {
         @Override
         public void onSaveComplete(File filePath) {
+            mSaveImageTask = null;
             mProgressDialog.dismiss();
 
-            ((TextView) findViewById(R.id.tv_save_result)).setText(filePath.getPath());
+            ((TextView) findViewById(R.id.tv_save_result)).setText(
+                    filePath == null ? "Save Fail." : filePath.getPath() + mDownsampleNote);
         }
     };
 }
@@ -0,0 +1,114 @@
+package com.ntx.converttiff;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to a file of any size through one memory-mapped window that
+ * slides to follow the reads, so only {@code windowSize} bytes are mapped at once.
+ */
+class MappedFile implements Closeable {
+
+    static final int DEFAULT_WINDOW_SIZE = 16 * 1024 * 1024;
+    private static final int MIN_WINDOW_SIZE = 64 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mLength;
+    private final int mWindowSize;
+
+    private ByteOrder mOrder = ByteOrder.BIG_ENDIAN;
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+
+    MappedFile(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedFile(File file, int windowSize) throws IOException {
+        this.mFile = new RandomAccessFile(file, "r");
+        this.mChannel = mFile.getChannel();
+        this.mLength = mChannel.size();
+        this.mWindowSize = Math.max(MIN_WINDOW_SIZE, windowSize) & ~1;
+    }
+
+    long length() {
+        return mLength;
+    }
+
+    synchronized void setByteOrder(ByteOrder order) {
+        mOrder = order;
+        if (mWindow != null) {
+            mWindow.order(order);
+        }
+    }
+
+    synchronized ByteOrder getByteOrder() {
+        return mOrder;
+    }
+
+    synchronized int readUnsignedByte(long position) throws IOException {
+        return window(position, 1).get((int) (position - mWindowStart)) & 0xFF;
+    }
+
+    synchronized int readUnsignedShort(long position) throws IOException {
+        return window(position, 2).getShort((int) (position - mWindowStart)) & 0xFFFF;
+    }
+
+    synchronized long readUnsignedInt(long position) throws IOException {
+        return window(position, 4).getInt((int) (position - mWindowStart)) & 0xFFFFFFFFL;
+    }
+
+    synchronized long readLong(long position) throws IOException {
+        return window(position, 8).getLong((int) (position - mWindowStart));
+    }
+
+    synchronized void read(long position, byte[] dst, int offset, int length) throws IOException {
+        while (length > 0) {
+            int chunk = Math.min(length, mWindowSize / 2);
+            MappedByteBuffer buffer = window(position, chunk);
+            buffer.position((int) (position - mWindowStart));
+            buffer.get(dst, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Drops the reference to the current window, so the next read maps a fresh
+     * one. The old mapping goes away only when its buffer is garbage collected;
+     * there is no way to unmap it sooner.
+     */
+    synchronized void releaseWindow() {
+        mWindow = null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mWindow = null;
+        mFile.close();
+    }
+
+    private MappedByteBuffer window(long position, int length) throws IOException {
+        if (position < 0 || length > mLength - position)
+            throw new EOFException("Read past end of file: " + position + "+" + length + " > " + mLength);
+
+        if (mWindow == null || position < mWindowStart
+                || position + length > mWindowStart + mWindow.capacity()) {
+            // Windows start on half-window boundaries, so any small read fits in one.
+            long start = position - position % (mWindowSize / 2);
+            long size = Math.min(Math.max(mWindowSize, position + length - start), mLength - start);
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            mWindow.order(mOrder);
+            mWindowStart = start;
+        }
+        return mWindow;
+    }
+}
@@ -0,0 +1,106 @@
+package com.ntx.converttiff;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * Tracks memory pressure from {@code onTrimMemory} and Java heap usage, and
+ * tells conversions how much they may use right now. A trim signal holds for
+ * a few seconds; after that the level follows the heap alone, so workers
+ * scale back up once pressure clears. Only trim signals hold back new
+ * work, since heap usage also counts garbage that nothing may collect while
+ * the admission queue sleeps.
+ */
+final class MemoryGovernor {
+
+    static final int LEVEL_NORMAL = 0;
+    static final int LEVEL_LOW = 1;
+    static final int LEVEL_CRITICAL = 2;
+
+    private static final long SIGNAL_HOLD_MS = 10000;
+    private static final long ADMISSION_POLL_MS = 200;
+    private static final long ADMISSION_TIMEOUT_MS = 30000;
+    private static final float HEAP_LOW = 0.70f;
+    private static final float HEAP_CRITICAL = 0.85f;
+
+    private static int sSignalLevel = LEVEL_NORMAL;
+    private static long sSignalTime = now() - SIGNAL_HOLD_MS;
+
+    private MemoryGovernor() {
+    }
+
+    static void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            signal(LEVEL_CRITICAL);
+        } else if (level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            signal(LEVEL_LOW);
+        }
+    }
+
+    static void onLowMemory() {
+        signal(LEVEL_CRITICAL);
+    }
+
+    static int level() {
+        int level = signalLevel();
+        Runtime runtime = Runtime.getRuntime();
+        float used = (float) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+        if (used > HEAP_CRITICAL)
+            return LEVEL_CRITICAL;
+        if (used > HEAP_LOW)
+            return Math.max(level, LEVEL_LOW);
+        return level;
+    }
+
+    /**
+     * Worker threads to use out of {@code requested}: all of them normally,
+     * half under low memory, one when critical.
+     */
+    static int maxWorkers(int requested) {
+        switch (level()) {
+            case LEVEL_CRITICAL:
+                return 1;
+            case LEVEL_LOW:
+                return Math.max(1, requested / 2);
+            default:
+                return requested;
+        }
+    }
+
+    /**
+     * Blocks new work while a critical trim signal is held, for at most
+     * {@link #ADMISSION_TIMEOUT_MS}.
+     *
+     * @return false if the caller was cancelled or interrupted while waiting
+     */
+    static boolean awaitAdmission(Cancellable cancellable) {
+        long deadline = now() + ADMISSION_TIMEOUT_MS;
+        while (signalLevel() == LEVEL_CRITICAL && now() < deadline) {
+            if (cancellable.isCancelled())
+                return false;
+            try {
+                Thread.sleep(ADMISSION_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !cancellable.isCancelled();
+    }
+
+    private static synchronized int signalLevel() {
+        return now() - sSignalTime < SIGNAL_HOLD_MS ? sSignalLevel : LEVEL_NORMAL;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static synchronized void signal(int level) {
+        long now = now();
+        if (now - sSignalTime >= SIGNAL_HOLD_MS || level > sSignalLevel) {
+            sSignalLevel = level;
+        }
+        sSignalTime = now;
+    }
+}
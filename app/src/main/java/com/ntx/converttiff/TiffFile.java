@@ -0,0 +1,214 @@
+package com.ntx.converttiff;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the header and image file directories of classic (version 42) and
+ * BigTIFF (version 43) files. Nothing is loaded up front; tag values are read
+ * through a {@link MappedFile} window when asked for.
+ */
+class TiffFile implements Closeable {
+
+    static final int TAG_IMAGE_WIDTH = 256;
+    static final int TAG_IMAGE_LENGTH = 257;
+    static final int TAG_BITS_PER_SAMPLE = 258;
+    static final int TAG_COMPRESSION = 259;
+    static final int TAG_PHOTOMETRIC = 262;
+    static final int TAG_STRIP_OFFSETS = 273;
+    static final int TAG_SAMPLES_PER_PIXEL = 277;
+    static final int TAG_ROWS_PER_STRIP = 278;
+    static final int TAG_STRIP_BYTE_COUNTS = 279;
+    static final int TAG_PLANAR_CONFIGURATION = 284;
+    static final int TAG_PREDICTOR = 317;
+    static final int TAG_TILE_WIDTH = 322;
+    static final int TAG_TILE_LENGTH = 323;
+    static final int TAG_TILE_OFFSETS = 324;
+    static final int TAG_TILE_BYTE_COUNTS = 325;
+
+    static final int TYPE_BYTE = 1;
+    static final int TYPE_SHORT = 3;
+    static final int TYPE_LONG = 4;
+    static final int TYPE_IFD = 13;
+    static final int TYPE_LONG8 = 16;
+    static final int TYPE_IFD8 = 18;
+
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4, 0, 0, 8, 8, 8};
+
+    private final MappedFile mFile;
+    private final boolean mBigTiff;
+    private final long mFirstIfdOffset;
+
+    private TiffFile(MappedFile file, boolean bigTiff, long firstIfdOffset) {
+        this.mFile = file;
+        this.mBigTiff = bigTiff;
+        this.mFirstIfdOffset = firstIfdOffset;
+    }
+
+    static TiffFile open(File file) throws IOException {
+        MappedFile mapped = new MappedFile(file);
+        try {
+            if (mapped.length() < 8)
+                throw new TiffFormatException(TiffFormatException.Code.TRUNCATED_HEADER, "file is " + mapped.length() + " bytes");
+
+            int order = mapped.readUnsignedShort(0);
+            if (order == 0x4949) {
+                mapped.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+            } else if (order != 0x4D4D) {
+                throw new TiffFormatException(TiffFormatException.Code.BAD_BYTE_ORDER, "byte order mark " + Integer.toHexString(order));
+            }
+
+            int version = mapped.readUnsignedShort(2);
+            if (version == 42)
+                return new TiffFile(mapped, false, mapped.readUnsignedInt(4));
+            if (version == 43) {
+                if (mapped.length() < 16)
+                    throw new TiffFormatException(TiffFormatException.Code.TRUNCATED_HEADER, "file is " + mapped.length() + " bytes");
+                if (mapped.readUnsignedShort(4) != 8 || mapped.readUnsignedShort(6) != 0)
+                    throw new TiffFormatException(TiffFormatException.Code.BAD_VERSION, "bad BigTIFF offset size");
+                return new TiffFile(mapped, true, mapped.readLong(8));
+            }
+            throw new TiffFormatException(TiffFormatException.Code.BAD_VERSION, "version " + version);
+        } catch (IOException e) {
+            mapped.close();
+            throw e;
+        }
+    }
+
+    boolean isBigTiff() {
+        return mBigTiff;
+    }
+
+    long length() {
+        return mFile.length();
+    }
+
+    long getFirstIfdOffset() {
+        return mFirstIfdOffset;
+    }
+
+    MappedFile getMappedFile() {
+        return mFile;
+    }
+
+    Directory readDirectory(long offset) throws IOException {
+        int entrySize = mBigTiff ? 20 : 12;
+        if (offset < (mBigTiff ? 16 : 8) || offset > mFile.length() - (mBigTiff ? 8 : 2))
+            throw new TiffFormatException(TiffFormatException.Code.IFD_OUT_OF_BOUNDS, "IFD at " + offset);
+        long count = mBigTiff ? mFile.readLong(offset) : mFile.readUnsignedShort(offset);
+        long entriesStart = offset + (mBigTiff ? 8 : 2);
+        if (count < 0 || count > (mFile.length() - entriesStart - (mBigTiff ? 8 : 4)) / entrySize)
+            throw new TiffFormatException(TiffFormatException.Code.IFD_OUT_OF_BOUNDS, "IFD at " + offset + " runs past end of file");
+
+        Map<Integer, Entry> entries = new TreeMap<>();
+        for (long i = 0; i < count; i++) {
+            long position = entriesStart + i * entrySize;
+            int tag = mFile.readUnsignedShort(position);
+            int type = mFile.readUnsignedShort(position + 2);
+            long valueCount = mBigTiff ? mFile.readLong(position + 4) : mFile.readUnsignedInt(position + 4);
+            long field = position + (mBigTiff ? 12 : 8);
+
+            long size = typeSize(type) * valueCount;
+            long valueOffset = field;
+            if (valueCount < 0 || size < 0 || size > (mBigTiff ? 8 : 4)) {
+                valueOffset = mBigTiff ? mFile.readLong(field) : mFile.readUnsignedInt(field);
+            }
+            entries.put(tag, new Entry(tag, type, valueCount, valueOffset));
+        }
+
+        long next = entriesStart + count * entrySize;
+        long nextOffset = mBigTiff ? mFile.readLong(next) : mFile.readUnsignedInt(next);
+        return new Directory(offset, nextOffset, entries);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    static int typeSize(int type) {
+        return type >= 0 && type < TYPE_SIZES.length ? TYPE_SIZES[type] : 0;
+    }
+
+    static final class Entry {
+        final int tag;
+        final int type;
+        final long count;
+        /** Absolute file position of the value data, inline or not. */
+        final long valueOffset;
+
+        Entry(int tag, int type, long count, long valueOffset) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.valueOffset = valueOffset;
+        }
+
+        long byteLength() {
+            return typeSize(type) * count;
+        }
+    }
+
+    final class Directory {
+        final long offset;
+        final long nextOffset;
+        final Map<Integer, Entry> entries;
+
+        Directory(long offset, long nextOffset, Map<Integer, Entry> entries) {
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+            this.entries = entries;
+        }
+
+        Entry get(int tag) {
+            return entries.get(tag);
+        }
+
+        long getLong(int tag, long defaultValue) throws IOException {
+            Entry entry = entries.get(tag);
+            if (entry == null || entry.count < 1)
+                return defaultValue;
+            return readValue(entry, 0);
+        }
+
+        /**
+         * The first {@code maxCount} values of {@code tag}, or fewer if the
+         * entry holds fewer, so a corrupt count cannot size the array.
+         */
+        long[] getLongs(int tag, long maxCount) throws IOException {
+            Entry entry = entries.get(tag);
+            if (entry == null)
+                return null;
+            long count = Math.min(entry.count, maxCount);
+            if (count < 0 || count > Integer.MAX_VALUE || typeSize(entry.type) * count > mFile.length())
+                throw new IOException("Tag " + tag + " has too many values: " + entry.count);
+
+            long[] values = new long[(int) count];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readValue(entry, i);
+            }
+            return values;
+        }
+
+        long readValue(Entry entry, long index) throws IOException {
+            switch (entry.type) {
+                case TYPE_BYTE:
+                    return mFile.readUnsignedByte(entry.valueOffset + index);
+                case TYPE_SHORT:
+                    return mFile.readUnsignedShort(entry.valueOffset + 2L * index);
+                case TYPE_LONG:
+                case TYPE_IFD:
+                    return mFile.readUnsignedInt(entry.valueOffset + 4L * index);
+                case TYPE_LONG8:
+                case TYPE_IFD8:
+                    return mFile.readLong(entry.valueOffset + 8L * index);
+                default:
+                    throw new IOException("Tag " + entry.tag + " has non-integer type " + entry.type);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.ntx.converttiff;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a TIFF file is structurally broken or uses a feature the
+ * decoder cannot handle. {@link #code} says which check failed.
+ */
+public class TiffFormatException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Code {
+        TRUNCATED_HEADER,
+        BAD_BYTE_ORDER,
+        BAD_VERSION,
+        NO_IMAGE,
+        IFD_OUT_OF_BOUNDS,
+        IFD_LOOP,
+        TOO_MANY_DIRECTORIES,
+        TAG_OUT_OF_BOUNDS,
+        MISSING_IMAGE_SIZE,
+        MISSING_DATA_OFFSETS,
+        DATA_COUNT_MISMATCH,
+        DATA_OUT_OF_BOUNDS,
+        UNSUPPORTED_COMPRESSION,
+        UNSUPPORTED_PHOTOMETRIC,
+        UNSUPPORTED_LAYOUT,
+        UNSUPPORTED_SAMPLE_FORMAT
+    }
+
+    public final Code code;
+
+    TiffFormatException(Code code, String message) {
+        super(code + ": " + message);
+        this.code = code;
+    }
+}
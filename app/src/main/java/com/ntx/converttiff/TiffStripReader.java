@@ -0,0 +1,370 @@
+package com.ntx.converttiff;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a stripped 8-bit gray or RGB image one strip at a time, keeping at
+ * most one decompressed strip in memory. Uncompressed rows are read straight
+ * out of the mapped file.
+ */
+class TiffStripReader {
+
+    static final int COMPRESSION_NONE = 1;
+    static final int COMPRESSION_LZW = 5;
+    static final int COMPRESSION_ADOBE_DEFLATE = 8;
+    static final int COMPRESSION_DEFLATE = 32946;
+    static final int COMPRESSION_PACKBITS = 32773;
+
+    static final int PHOTOMETRIC_WHITE_IS_ZERO = 0;
+    static final int PHOTOMETRIC_BLACK_IS_ZERO = 1;
+    static final int PHOTOMETRIC_RGB = 2;
+
+    static final int MAX_STRIP_BYTES = 64 * 1024 * 1024;
+
+    private final MappedFile mFile;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mSamplesPerPixel;
+    private final int mCompression;
+    private final int mPhotometric;
+    private final int mPredictor;
+    private final int mRowsPerStrip;
+    private final int mRowBytes;
+    private final long[] mStripOffsets;
+    private final long[] mStripByteCounts;
+
+    private int mCachedStrip = -1;
+    private byte[] mStrip;
+    private byte[] mRow;
+
+    TiffStripReader(TiffFile tiff, TiffFile.Directory directory) throws IOException {
+        checkSupported(directory);
+        this.mFile = tiff.getMappedFile();
+        this.mWidth = (int) directory.getLong(TiffFile.TAG_IMAGE_WIDTH, 0);
+        this.mHeight = (int) directory.getLong(TiffFile.TAG_IMAGE_LENGTH, 0);
+        this.mSamplesPerPixel = (int) directory.getLong(TiffFile.TAG_SAMPLES_PER_PIXEL, 1);
+        this.mCompression = (int) directory.getLong(TiffFile.TAG_COMPRESSION, COMPRESSION_NONE);
+        this.mPhotometric = (int) directory.getLong(TiffFile.TAG_PHOTOMETRIC, -1);
+        this.mPredictor = (int) directory.getLong(TiffFile.TAG_PREDICTOR, 1);
+        this.mRowBytes = mWidth * mSamplesPerPixel;
+        this.mRowsPerStrip = (int) Math.min(directory.getLong(TiffFile.TAG_ROWS_PER_STRIP, mHeight), mHeight);
+
+        int strips = (mHeight + mRowsPerStrip - 1) / mRowsPerStrip;
+        this.mStripOffsets = directory.getLongs(TiffFile.TAG_STRIP_OFFSETS, strips);
+        this.mStripByteCounts = directory.getLongs(TiffFile.TAG_STRIP_BYTE_COUNTS, strips);
+        if (mStripOffsets == null || mStripByteCounts == null)
+            throw new TiffFormatException(TiffFormatException.Code.MISSING_DATA_OFFSETS,
+                    "IFD at " + directory.offset);
+        if (mStripOffsets.length < strips || mStripByteCounts.length < strips)
+            throw new TiffFormatException(TiffFormatException.Code.DATA_COUNT_MISMATCH,
+                    mStripOffsets.length + " offsets, " + mStripByteCounts.length + " byte counts, "
+                            + strips + " expected in IFD at " + directory.offset);
+    }
+
+    /**
+     * Throws unless {@code directory} describes a stripped, chunky, 8-bit gray
+     * or RGB image in a compression this reader can decode.
+     */
+    static void checkSupported(TiffFile.Directory directory) throws IOException {
+        long width = directory.getLong(TiffFile.TAG_IMAGE_WIDTH, 0);
+        long height = directory.getLong(TiffFile.TAG_IMAGE_LENGTH, 0);
+        if (width < 1 || height < 1)
+            throw new TiffFormatException(TiffFormatException.Code.MISSING_IMAGE_SIZE,
+                    width + "x" + height + " in IFD at " + directory.offset);
+        if (width > Integer.MAX_VALUE || height > Integer.MAX_VALUE)
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_LAYOUT,
+                    "image size " + width + "x" + height);
+
+        if (directory.get(TiffFile.TAG_TILE_OFFSETS) != null)
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_LAYOUT, "tiled image");
+        if (directory.getLong(TiffFile.TAG_PLANAR_CONFIGURATION, 1) != 1)
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_LAYOUT, "planar image");
+
+        long samplesPerPixel = directory.getLong(TiffFile.TAG_SAMPLES_PER_PIXEL, 1);
+        if (samplesPerPixel < 1 || samplesPerPixel > 4)
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_SAMPLE_FORMAT,
+                    samplesPerPixel + " samples per pixel");
+        long[] bitsPerSample = directory.getLongs(TiffFile.TAG_BITS_PER_SAMPLE, samplesPerPixel);
+        if (bitsPerSample != null) {
+            for (long bits : bitsPerSample) {
+                if (bits != 8)
+                    throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_SAMPLE_FORMAT,
+                            bits + " bits per sample");
+            }
+        }
+
+        long compression = directory.getLong(TiffFile.TAG_COMPRESSION, COMPRESSION_NONE);
+        if (compression > Integer.MAX_VALUE || !isSupportedCompression((int) compression))
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_COMPRESSION,
+                    "compression " + compression);
+        long predictor = directory.getLong(TiffFile.TAG_PREDICTOR, 1);
+        if (predictor != 1 && predictor != 2)
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_COMPRESSION,
+                    "predictor " + predictor);
+
+        long photometric = directory.getLong(TiffFile.TAG_PHOTOMETRIC, -1);
+        boolean gray = photometric == PHOTOMETRIC_WHITE_IS_ZERO || photometric == PHOTOMETRIC_BLACK_IS_ZERO;
+        if (!gray && photometric != PHOTOMETRIC_RGB)
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_PHOTOMETRIC,
+                    "photometric " + photometric);
+        if (gray ? samplesPerPixel > 2 : samplesPerPixel < 3)
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_SAMPLE_FORMAT,
+                    samplesPerPixel + " samples per pixel for photometric " + photometric);
+
+        long rowBytes = width * samplesPerPixel;
+        long rowsPerStrip = Math.min(directory.getLong(TiffFile.TAG_ROWS_PER_STRIP, height), height);
+        if (rowsPerStrip < 1 || rowBytes > MAX_STRIP_BYTES
+                || (decodesWholeStrips(compression, predictor) && rowsPerStrip * rowBytes > MAX_STRIP_BYTES))
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_LAYOUT,
+                    rowsPerStrip + " rows of " + rowBytes + " bytes per strip");
+    }
+
+    /**
+     * Whether strips are loaded into memory whole, which caps their size at
+     * {@link #MAX_STRIP_BYTES}, rather than read row by row from the mapping.
+     */
+    static boolean decodesWholeStrips(long compression, long predictor) {
+        return compression != COMPRESSION_NONE || predictor != 1;
+    }
+
+    static boolean isSupportedCompression(int compression) {
+        return compression == COMPRESSION_NONE
+                || compression == COMPRESSION_LZW
+                || compression == COMPRESSION_ADOBE_DEFLATE
+                || compression == COMPRESSION_DEFLATE
+                || compression == COMPRESSION_PACKBITS;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Reads {@code count} pixels of row {@code y}, starting at column
+     * {@code x0} and taking every {@code step}-th pixel.
+     */
+    synchronized void readRow(int y, int[] argb, int offset, int x0, int step, int count) throws IOException {
+        byte[] data;
+        int start;
+        if (!decodesWholeStrips(mCompression, mPredictor)) {
+            if (mRow == null) {
+                mRow = new byte[mRowBytes];
+            }
+            int strip = y / mRowsPerStrip;
+            long position = mStripOffsets[strip] + (long) (y % mRowsPerStrip) * mRowBytes;
+            mFile.read(position, mRow, 0, mRowBytes);
+            data = mRow;
+            start = 0;
+        } else {
+            data = loadStrip(y / mRowsPerStrip);
+            start = (y % mRowsPerStrip) * mRowBytes;
+        }
+
+        int spp = mSamplesPerPixel;
+        boolean invert = mPhotometric == PHOTOMETRIC_WHITE_IS_ZERO;
+        for (int i = 0; i < count; i++) {
+            int p = start + (x0 + i * step) * spp;
+            int pixel;
+            if (spp < 3) {
+                int g = data[p] & 0xFF;
+                if (invert) {
+                    g = 255 - g;
+                }
+                int a = spp == 2 ? data[p + 1] & 0xFF : 0xFF;
+                pixel = (a << 24) | (g << 16) | (g << 8) | g;
+            } else {
+                int a = spp == 4 ? data[p + 3] & 0xFF : 0xFF;
+                pixel = (a << 24) | ((data[p] & 0xFF) << 16) | ((data[p + 1] & 0xFF) << 8) | (data[p + 2] & 0xFF);
+            }
+            argb[offset + i] = pixel;
+        }
+    }
+
+    /**
+     * Drops the cached strip and row buffers and the file's mapped window, so
+     * the GC can reclaim them. The window stays mapped until its buffer is
+     * collected.
+     */
+    synchronized void releaseBuffers() {
+        mFile.releaseWindow();
+        mStrip = null;
+        mRow = null;
+        mCachedStrip = -1;
+    }
+
+    private byte[] loadStrip(int strip) throws IOException {
+        if (strip == mCachedStrip)
+            return mStrip;
+
+        int rows = Math.min(mRowsPerStrip, mHeight - strip * mRowsPerStrip);
+        int size = rows * mRowBytes;
+        if (mStrip == null || mStrip.length < size) {
+            mStrip = new byte[mRowsPerStrip * mRowBytes];
+        }
+        mCachedStrip = -1;
+
+        long byteCount = mStripByteCounts[strip];
+        if (byteCount < 0 || byteCount > MAX_STRIP_BYTES)
+            throw new IOException("Strip " + strip + " is too large: " + byteCount);
+        byte[] raw = new byte[(int) byteCount];
+        mFile.read(mStripOffsets[strip], raw, 0, raw.length);
+
+        int decoded;
+        switch (mCompression) {
+            case COMPRESSION_LZW:
+                decoded = decodeLzw(raw, mStrip, size);
+                break;
+            case COMPRESSION_ADOBE_DEFLATE:
+            case COMPRESSION_DEFLATE:
+                decoded = inflate(raw, mStrip, size);
+                break;
+            case COMPRESSION_PACKBITS:
+                decoded = unpackBits(raw, mStrip, size);
+                break;
+            default:
+                decoded = Math.min(raw.length, size);
+                System.arraycopy(raw, 0, mStrip, 0, decoded);
+                break;
+        }
+        // mStrip still holds the previous strip, so a short one would show
+        // its pixels.
+        if (decoded < size)
+            throw new IOException("Strip " + strip + " truncated: " + decoded + " of " + size + " bytes");
+
+        if (mPredictor == 2) {
+            for (int row = 0; row < rows; row++) {
+                int rowStart = row * mRowBytes;
+                for (int i = rowStart + mSamplesPerPixel; i < rowStart + mRowBytes; i++) {
+                    mStrip[i] += mStrip[i - mSamplesPerPixel];
+                }
+            }
+        }
+
+        mCachedStrip = strip;
+        return mStrip;
+    }
+
+    /**
+     * The strip decoders write at most {@code size} bytes into {@code dst} and
+     * return how many they wrote, which is fewer if {@code src} runs out.
+     */
+    private static int inflate(byte[] src, byte[] dst, int size) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(src);
+            int length = 0;
+            while (length < size && !inflater.finished()) {
+                int n = inflater.inflate(dst, length, size - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += n;
+            }
+            return length;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate strip", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int unpackBits(byte[] src, byte[] dst, int size) {
+        int in = 0;
+        int out = 0;
+        while (in < src.length && out < size) {
+            int n = src[in++];
+            if (n >= 0) {
+                int count = Math.min(Math.min(n + 1, src.length - in), size - out);
+                System.arraycopy(src, in, dst, out, count);
+                in += n + 1;
+                out += count;
+            } else if (n != -128 && in < src.length) {
+                byte value = src[in++];
+                int count = Math.min(1 - n, size - out);
+                for (int i = 0; i < count; i++) {
+                    dst[out++] = value;
+                }
+            }
+        }
+        return out;
+    }
+
+    private static int decodeLzw(byte[] src, byte[] dst, int size) throws IOException {
+        final int clearCode = 256;
+        final int endCode = 257;
+        int[] prefix = new int[4096];
+        byte[] suffix = new byte[4096];
+        byte[] first = new byte[4096];
+        int[] length = new int[4096];
+        for (int i = 0; i < 256; i++) {
+            suffix[i] = (byte) i;
+            first[i] = (byte) i;
+            length[i] = 1;
+        }
+
+        int codeLength = 9;
+        int next = 258;
+        int old = -1;
+        int out = 0;
+        long bitBuffer = 0;
+        int bitCount = 0;
+        int in = 0;
+        while (out < size) {
+            while (bitCount < codeLength && in < src.length) {
+                bitBuffer = (bitBuffer << 8) | (src[in++] & 0xFF);
+                bitCount += 8;
+            }
+            if (bitCount < codeLength)
+                break;
+            int code = (int) (bitBuffer >>> (bitCount - codeLength)) & ((1 << codeLength) - 1);
+            bitCount -= codeLength;
+
+            if (code == endCode)
+                break;
+            if (code == clearCode) {
+                codeLength = 9;
+                next = 258;
+                old = -1;
+                continue;
+            }
+            if (old == -1) {
+                if (code > 255)
+                    throw new IOException("Corrupt LZW strip");
+                dst[out++] = (byte) code;
+                old = code;
+                continue;
+            }
+
+            if (code > next || (code == next && next == 4096))
+                throw new IOException("Corrupt LZW strip");
+            if (next < 4096) {
+                prefix[next] = old;
+                suffix[next] = first[code < next ? code : old];
+                first[next] = first[old];
+                length[next] = length[old] + 1;
+                next++;
+                if (next == (1 << codeLength) - 1 && codeLength < 12) {
+                    codeLength++;
+                }
+            }
+
+            int n = length[code];
+            int end = Math.min(out + n, size);
+            int c = code;
+            for (int i = out + n - 1; i >= out; i--) {
+                if (i < end) {
+                    dst[i] = suffix[c];
+                }
+                c = prefix[c];
+            }
+            out = end;
+            old = code;
+        }
+        return out;
+    }
+}
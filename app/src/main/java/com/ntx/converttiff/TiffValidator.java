@@ -0,0 +1,173 @@
+package com.ntx.converttiff;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Cheap structural checks run before any pixel is decoded. The whole IFD
+ * chain must be acyclic and inside the file; only the first image, the one
+ * that gets converted, has its tags and strips or tiles checked, and no more
+ * strictly than the chosen decoder needs.
+ */
+final class TiffValidator {
+
+    private static final int MAX_DIRECTORIES = 65536;
+
+    // Tags the decoders read from the first IFD.
+    private static final int[] IMAGE_TAGS = {
+            TiffFile.TAG_IMAGE_WIDTH, TiffFile.TAG_IMAGE_LENGTH, TiffFile.TAG_BITS_PER_SAMPLE,
+            TiffFile.TAG_COMPRESSION, TiffFile.TAG_PHOTOMETRIC, TiffFile.TAG_STRIP_OFFSETS,
+            TiffFile.TAG_SAMPLES_PER_PIXEL, TiffFile.TAG_ROWS_PER_STRIP, TiffFile.TAG_STRIP_BYTE_COUNTS,
+            TiffFile.TAG_PLANAR_CONFIGURATION, TiffFile.TAG_PREDICTOR, TiffFile.TAG_TILE_WIDTH,
+            TiffFile.TAG_TILE_LENGTH, TiffFile.TAG_TILE_OFFSETS, TiffFile.TAG_TILE_BYTE_COUNTS
+    };
+
+    // Every value libtiff's tiff.h defines. Which of them TiffBitmapFactory
+    // decodes depends on how its libtiff was built, so only values unknown to
+    // TIFF are rejected up front and the library reports the rest.
+    private static final int[] KNOWN_COMPRESSIONS = {
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 32766, 32771, 32773, 32809, 32895, 32896, 32897, 32898,
+            32908, 32909, 32946, 32947, 34661, 34676, 34677, 34712, 34887, 34925, 50000, 50001, 50002
+    };
+    private static final int[] KNOWN_PHOTOMETRICS = {0, 1, 2, 3, 4, 5, 6, 8, 9, 10, 32803, 32844, 32845, 34892};
+
+    private TiffValidator() {
+    }
+
+    /**
+     * Walks the IFD chain looking only for loops and directories outside the
+     * file, and returns the first directory.
+     */
+    static TiffFile.Directory checkStructure(TiffFile tiff) throws IOException {
+        long offset = tiff.getFirstIfdOffset();
+        if (offset == 0)
+            throw new TiffFormatException(TiffFormatException.Code.NO_IMAGE, "first IFD offset is 0");
+
+        Set<Long> visited = new HashSet<>();
+        TiffFile.Directory first = null;
+        while (offset != 0) {
+            if (!visited.add(offset))
+                throw new TiffFormatException(TiffFormatException.Code.IFD_LOOP, "IFD at " + offset + " seen twice");
+            if (visited.size() > MAX_DIRECTORIES)
+                throw new TiffFormatException(TiffFormatException.Code.TOO_MANY_DIRECTORIES,
+                        "more than " + MAX_DIRECTORIES + " IFDs");
+
+            TiffFile.Directory directory = tiff.readDirectory(offset);
+            if (first == null) {
+                first = directory;
+            }
+            offset = directory.nextOffset;
+        }
+        return first;
+    }
+
+    /**
+     * Checks the image in {@code directory}. TiffBitmapFactory tolerates
+     * missing byte counts and short offset arrays, so only the strict
+     * {@link TiffStripReader} requires them.
+     *
+     * @param stripDecode whether the image will go through {@link TiffStripReader}
+     *                    rather than TiffBitmapFactory
+     */
+    static void checkImage(TiffFile tiff, TiffFile.Directory directory, boolean stripDecode) throws IOException {
+        checkTagBounds(tiff, directory);
+        if (stripDecode) {
+            TiffStripReader.checkSupported(directory);
+        } else {
+            checkKnownToTiff(directory);
+        }
+        checkImageData(tiff, directory, stripDecode);
+    }
+
+    private static void checkTagBounds(TiffFile tiff, TiffFile.Directory directory) throws IOException {
+        for (int tag : IMAGE_TAGS) {
+            TiffFile.Entry entry = directory.get(tag);
+            if (entry == null)
+                continue;
+            long size = entry.byteLength();
+            if (entry.count < 0 || entry.count > tiff.length() || entry.valueOffset < 0
+                    || size > tiff.length() - entry.valueOffset)
+                throw new TiffFormatException(TiffFormatException.Code.TAG_OUT_OF_BOUNDS,
+                        "tag " + tag + " in IFD at " + directory.offset);
+        }
+    }
+
+    private static void checkImageData(TiffFile tiff, TiffFile.Directory directory, boolean stripDecode)
+            throws IOException {
+        long width = directory.getLong(TiffFile.TAG_IMAGE_WIDTH, 0);
+        long height = directory.getLong(TiffFile.TAG_IMAGE_LENGTH, 0);
+        if (width < 1 || height < 1)
+            throw new TiffFormatException(TiffFormatException.Code.MISSING_IMAGE_SIZE,
+                    width + "x" + height + " in IFD at " + directory.offset);
+
+        long expected;
+        TiffFile.Entry offsets;
+        TiffFile.Entry byteCounts;
+        if (directory.get(TiffFile.TAG_TILE_OFFSETS) != null) {
+            long tileWidth = directory.getLong(TiffFile.TAG_TILE_WIDTH, 0);
+            long tileLength = directory.getLong(TiffFile.TAG_TILE_LENGTH, 0);
+            if (tileWidth < 1 || tileLength < 1)
+                throw new TiffFormatException(TiffFormatException.Code.MISSING_IMAGE_SIZE,
+                        "tile " + tileWidth + "x" + tileLength + " in IFD at " + directory.offset);
+            expected = ((width + tileWidth - 1) / tileWidth) * ((height + tileLength - 1) / tileLength);
+            offsets = directory.get(TiffFile.TAG_TILE_OFFSETS);
+            byteCounts = directory.get(TiffFile.TAG_TILE_BYTE_COUNTS);
+        } else {
+            long rowsPerStrip = Math.min(directory.getLong(TiffFile.TAG_ROWS_PER_STRIP, height), height);
+            expected = rowsPerStrip < 1 ? 1 : (height + rowsPerStrip - 1) / rowsPerStrip;
+            offsets = directory.get(TiffFile.TAG_STRIP_OFFSETS);
+            byteCounts = directory.get(TiffFile.TAG_STRIP_BYTE_COUNTS);
+        }
+        if (directory.getLong(TiffFile.TAG_PLANAR_CONFIGURATION, 1) == 2) {
+            expected *= directory.getLong(TiffFile.TAG_SAMPLES_PER_PIXEL, 1);
+        }
+
+        if (offsets == null || (stripDecode && byteCounts == null))
+            throw new TiffFormatException(TiffFormatException.Code.MISSING_DATA_OFFSETS,
+                    "IFD at " + directory.offset);
+        if (stripDecode && (offsets.count < expected || byteCounts.count < expected))
+            throw new TiffFormatException(TiffFormatException.Code.DATA_COUNT_MISMATCH,
+                    offsets.count + " offsets, " + byteCounts.count + " byte counts, " + expected
+                            + " expected in IFD at " + directory.offset);
+
+        boolean wholeStrips = stripDecode && TiffStripReader.decodesWholeStrips(
+                directory.getLong(TiffFile.TAG_COMPRESSION, TiffStripReader.COMPRESSION_NONE),
+                directory.getLong(TiffFile.TAG_PREDICTOR, 1));
+        long length = tiff.length();
+        // Values are read one at a time and never past what the image needs,
+        // so a corrupt count costs neither memory nor time.
+        long blocks = Math.min(offsets.count, expected);
+        for (long i = 0; i < blocks; i++) {
+            long offset = directory.readValue(offsets, i);
+            long byteCount = byteCounts != null && i < byteCounts.count ? directory.readValue(byteCounts, i) : 0;
+            if (offset < 0 || offset > length || byteCount < 0 || byteCount > length - offset)
+                throw new TiffFormatException(TiffFormatException.Code.DATA_OUT_OF_BOUNDS,
+                        "block " + i + " at " + offset + "+" + byteCount + " past " + length);
+            if (wholeStrips && byteCount > TiffStripReader.MAX_STRIP_BYTES)
+                throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_LAYOUT,
+                        "strip " + i + " is " + byteCount + " bytes");
+        }
+    }
+
+    private static void checkKnownToTiff(TiffFile.Directory directory) throws IOException {
+        long compression = directory.getLong(TiffFile.TAG_COMPRESSION, TiffStripReader.COMPRESSION_NONE);
+        if (compression > Integer.MAX_VALUE || !contains(KNOWN_COMPRESSIONS, (int) compression))
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_COMPRESSION,
+                    "compression " + compression);
+
+        // libtiff guesses a missing photometric tag from the sample layout.
+        long photometric = directory.getLong(TiffFile.TAG_PHOTOMETRIC, -1);
+        if (photometric != -1 && (photometric > Integer.MAX_VALUE || !contains(KNOWN_PHOTOMETRICS, (int) photometric)))
+            throw new TiffFormatException(TiffFormatException.Code.UNSUPPORTED_PHOTOMETRIC,
+                    "photometric " + photometric);
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,201 @@
+package com.ntx.converttiff;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JpegEncoderTest {
+
+    private static final Cancellable NEVER = new Cancellable() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    @Test
+    public void singlePixel_roundTrips() throws IOException {
+        for (JpegEncoder.Subsampling subsampling : JpegEncoder.Subsampling.values()) {
+            assertRoundTrip(1, 1, subsampling, false, 1);
+            assertRoundTrip(1, 1, subsampling, true, 4);
+        }
+    }
+
+    @Test
+    public void partialMcus_roundTrip() throws IOException {
+        for (JpegEncoder.Subsampling subsampling : JpegEncoder.Subsampling.values()) {
+            assertRoundTrip(17, 33, subsampling, false, 2);
+            assertRoundTrip(33, 17, subsampling, true, 2);
+        }
+    }
+
+    @Test
+    public void multipleBands_roundTrip() throws IOException {
+        for (JpegEncoder.Subsampling subsampling : JpegEncoder.Subsampling.values()) {
+            assertRoundTrip(1001, 777, subsampling, false, 4);
+            assertRoundTrip(1001, 777, subsampling, true, 4);
+        }
+    }
+
+    @Test
+    public void restartMarkers_separateEveryBand() throws IOException {
+        for (JpegEncoder.Subsampling subsampling : JpegEncoder.Subsampling.values()) {
+            for (int threads : new int[]{1, 4}) {
+                assertRestartMarkers(1001, 777, subsampling, threads);
+                assertRestartMarkers(16, 16, subsampling, threads);
+            }
+        }
+    }
+
+    @Test
+    public void output_doesNotDependOnScheduling() throws IOException {
+        byte[] first = encode(640, 480, JpegEncoder.Subsampling.YUV420, true, 4, 85);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(first, encode(640, 480, JpegEncoder.Subsampling.YUV420, true, 4, 85));
+        }
+    }
+
+    @Test
+    public void cancellation_stopsTheEncode() throws IOException {
+        final int[] polls = {0};
+        Cancellable cancelled = new Cancellable() {
+            @Override
+            public boolean isCancelled() {
+                return ++polls[0] > 2;
+            }
+        };
+        try {
+            new JpegEncoder(90, JpegEncoder.Subsampling.YUV420, false, 2)
+                    .encode(gradient(1001, 777), 1001, 777, new ByteArrayOutputStream(), cancelled);
+            fail("expected CancellationException");
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test
+    public void canEncode_checksBaselineLimits() {
+        assertTrue(JpegEncoder.canEncode(1, 1));
+        assertTrue(JpegEncoder.canEncode(65535, 65535));
+        assertFalse(JpegEncoder.canEncode(0, 10));
+        assertFalse(JpegEncoder.canEncode(200000, 100));
+        assertFalse(JpegEncoder.canEncode(100, 65536));
+    }
+
+    private static void assertRoundTrip(int width, int height, JpegEncoder.Subsampling subsampling,
+                                        boolean optimizeHuffman, int threads) throws IOException {
+        for (int quality : new int[]{75, 100}) {
+            byte[] jpeg = encode(width, height, subsampling, optimizeHuffman, threads, quality);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+            String label = width + "x" + height + " " + subsampling + " q" + quality
+                    + (optimizeHuffman ? " optimized" : "");
+            assertNotNull(label, image);
+            assertEquals(label, width, image.getWidth());
+            assertEquals(label, height, image.getHeight());
+
+            double squaredError = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int decoded = image.getRGB(x, y);
+                    int original = pixel(x, y, width, height);
+                    for (int shift = 0; shift < 24; shift += 8) {
+                        int e = ((decoded >> shift) & 0xFF) - ((original >> shift) & 0xFF);
+                        squaredError += e * e;
+                    }
+                }
+            }
+            double mse = squaredError / (3.0 * width * height);
+            double psnr = 10 * Math.log10(255.0 * 255.0 / Math.max(mse, 1e-9));
+            // At q100 only chroma subsampling and DCT rounding lose anything.
+            assertTrue(label + " PSNR " + psnr, psnr > (quality == 100 ? 36 : 30));
+        }
+    }
+
+    /**
+     * Bands are restart intervals, so the scan holds one RST marker between
+     * each pair of intervals, numbered 0 to 7 in turn.
+     */
+    private static void assertRestartMarkers(int width, int height, JpegEncoder.Subsampling subsampling,
+                                             int threads) throws IOException {
+        byte[] jpeg = encode(width, height, subsampling, false, threads, 90);
+        String label = width + "x" + height + " " + subsampling + " threads=" + threads;
+
+        int interval = 0;
+        int p = 2;
+        while (true) {
+            int marker = jpeg[p + 1] & 0xFF;
+            int length = ((jpeg[p + 2] & 0xFF) << 8) | (jpeg[p + 3] & 0xFF);
+            if (marker == 0xDD) {
+                interval = ((jpeg[p + 4] & 0xFF) << 8) | (jpeg[p + 5] & 0xFF);
+            }
+            p += 2 + length;
+            if (marker == 0xDA)
+                break;
+        }
+
+        int restarts = 0;
+        for (; p < jpeg.length - 2; p++) {
+            if ((jpeg[p] & 0xFF) != 0xFF)
+                continue;
+            int marker = jpeg[p + 1] & 0xFF;
+            if (marker >= 0xD0 && marker <= 0xD7) {
+                assertEquals(label, 0xD0 + (restarts & 7), marker);
+                restarts++;
+            } else {
+                assertEquals(label + " at " + p, 0x00, marker);
+            }
+            p++;
+        }
+        assertEquals(label, 0xFF, jpeg[jpeg.length - 2] & 0xFF);
+        assertEquals(label, 0xD9, jpeg[jpeg.length - 1] & 0xFF);
+
+        int mcuWidth = 8 * subsampling.h;
+        int mcuHeight = 8 * subsampling.v;
+        int mcus = ((width + mcuWidth - 1) / mcuWidth) * ((height + mcuHeight - 1) / mcuHeight);
+        int expected = interval == 0 ? 0 : (mcus + interval - 1) / interval - 1;
+        assertEquals(label, expected, restarts);
+        if (threads > 1 && height > 256) {
+            assertTrue(label + " should be split into bands", restarts > 0);
+        }
+    }
+
+    private static byte[] encode(int width, int height, JpegEncoder.Subsampling subsampling,
+                                 boolean optimizeHuffman, int threads, int quality) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JpegEncoder(quality, subsampling, optimizeHuffman, threads)
+                .encode(gradient(width, height), width, height, out, NEVER);
+        return out.toByteArray();
+    }
+
+    private static JpegEncoder.RowReader gradient(final int width, final int height) {
+        return new JpegEncoder.RowReader() {
+            @Override
+            public void readRows(int[] argb, int y, int rows) {
+                for (int row = 0; row < rows; row++) {
+                    for (int x = 0; x < width; x++) {
+                        argb[row * width + x] = pixel(x, y + row, width, height);
+                    }
+                }
+            }
+        };
+    }
+
+    private static int pixel(int x, int y, int width, int height) {
+        int r = x * 255 / Math.max(1, width - 1);
+        int g = y * 255 / Math.max(1, height - 1);
+        int b = ((x + y) / 3) & 0xFF;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+}
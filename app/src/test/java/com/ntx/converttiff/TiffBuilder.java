@@ -0,0 +1,278 @@
+package com.ntx.converttiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Lays out little-endian classic or BigTIFF files by hand for tests, including
+ * broken ones: tags and IFD links can be given raw values that point anywhere.
+ */
+class TiffBuilder {
+
+    private final boolean mBigTiff;
+    private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+    private final List<Ifd> mIfds = new ArrayList<>();
+    private Long mFirstIfdOffset;
+
+    TiffBuilder(boolean bigTiff) {
+        this.mBigTiff = bigTiff;
+    }
+
+    /**
+     * Adds a stripped, uncompressed 8-bit image whose strips hold {@code pixels}
+     * row by row, {@code rowsPerStrip} rows each.
+     */
+    static TiffBuilder image(boolean bigTiff, int width, int height, int samplesPerPixel, int rowsPerStrip,
+                             byte[] pixels) {
+        TiffBuilder builder = new TiffBuilder(bigTiff);
+        int rowBytes = width * samplesPerPixel;
+        int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+        byte[][] data = new byte[strips][];
+        for (int i = 0; i < strips; i++) {
+            int start = i * rowsPerStrip * rowBytes;
+            int end = Math.min(height, (i + 1) * rowsPerStrip) * rowBytes;
+            data[i] = Arrays.copyOfRange(pixels, start, end);
+        }
+        builder.addImage(width, height, samplesPerPixel, rowsPerStrip, TiffStripReader.COMPRESSION_NONE, data);
+        return builder;
+    }
+
+    /**
+     * Adds an IFD for already-encoded strips.
+     */
+    Ifd addImage(int width, int height, int samplesPerPixel, int rowsPerStrip, int compression, byte[][] strips) {
+        long[] offsets = new long[strips.length];
+        long[] byteCounts = new long[strips.length];
+        for (int i = 0; i < strips.length; i++) {
+            offsets[i] = append(strips[i]);
+            byteCounts[i] = strips[i].length;
+        }
+        long[] bits = new long[samplesPerPixel];
+        Arrays.fill(bits, 8);
+        int offsetType = mBigTiff ? TiffFile.TYPE_LONG8 : TiffFile.TYPE_LONG;
+        return addIfd()
+                .tag(TiffFile.TAG_IMAGE_WIDTH, TiffFile.TYPE_LONG, width)
+                .tag(TiffFile.TAG_IMAGE_LENGTH, TiffFile.TYPE_LONG, height)
+                .tag(TiffFile.TAG_BITS_PER_SAMPLE, TiffFile.TYPE_SHORT, bits)
+                .tag(TiffFile.TAG_COMPRESSION, TiffFile.TYPE_SHORT, compression)
+                .tag(TiffFile.TAG_PHOTOMETRIC, TiffFile.TYPE_SHORT, samplesPerPixel >= 3
+                        ? TiffStripReader.PHOTOMETRIC_RGB : TiffStripReader.PHOTOMETRIC_BLACK_IS_ZERO)
+                .tag(TiffFile.TAG_STRIP_OFFSETS, offsetType, offsets)
+                .tag(TiffFile.TAG_SAMPLES_PER_PIXEL, TiffFile.TYPE_SHORT, samplesPerPixel)
+                .tag(TiffFile.TAG_ROWS_PER_STRIP, TiffFile.TYPE_LONG, rowsPerStrip)
+                .tag(TiffFile.TAG_STRIP_BYTE_COUNTS, offsetType, byteCounts);
+    }
+
+    Ifd addIfd() {
+        Ifd ifd = new Ifd();
+        mIfds.add(ifd);
+        return ifd;
+    }
+
+    Ifd getIfd(int index) {
+        return mIfds.get(index);
+    }
+
+    /**
+     * Appends raw bytes after the header and returns their file offset.
+     */
+    long append(byte[] bytes) {
+        long offset = headerSize() + mData.size();
+        mData.write(bytes, 0, bytes.length);
+        if ((mData.size() & 1) != 0) {
+            mData.write(0);
+        }
+        return offset;
+    }
+
+    void setFirstIfdOffset(long offset) {
+        mFirstIfdOffset = offset;
+    }
+
+    byte[] toByteArray() {
+        long[] positions = new long[mIfds.size()];
+        long position = headerSize() + mData.size();
+        for (int i = 0; i < mIfds.size(); i++) {
+            positions[i] = position;
+            position += mIfds.get(i).size();
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) position).order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte) 'I').put((byte) 'I');
+        long first = mFirstIfdOffset != null ? mFirstIfdOffset : positions.length > 0 ? positions[0] : 0;
+        if (mBigTiff) {
+            out.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(first);
+        } else {
+            out.putShort((short) 42).putInt((int) first);
+        }
+        out.put(mData.toByteArray());
+        for (int i = 0; i < mIfds.size(); i++) {
+            Ifd ifd = mIfds.get(i);
+            long next;
+            if (ifd.mNext != null) {
+                next = ifd.mNext;
+            } else if (ifd.mNextIfd != null) {
+                next = positions[mIfds.indexOf(ifd.mNextIfd)];
+            } else {
+                next = i + 1 < positions.length ? positions[i + 1] : 0;
+            }
+            ifd.write(out, positions[i], next);
+        }
+        return out.array();
+    }
+
+    File write(File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(toByteArray());
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private int headerSize() {
+        return mBigTiff ? 16 : 8;
+    }
+
+    class Ifd {
+        private final Map<Integer, Field> mFields = new TreeMap<>();
+        private Long mNext;
+        private Ifd mNextIfd;
+
+        Ifd tag(int tag, int type, long... values) {
+            mFields.put(tag, new Field(tag, type, values.length, values, 0));
+            return this;
+        }
+
+        /**
+         * A tag whose count and value offset are written as given.
+         */
+        Ifd rawTag(int tag, int type, long count, long valueOffset) {
+            mFields.put(tag, new Field(tag, type, count, null, valueOffset));
+            return this;
+        }
+
+        Ifd remove(int tag) {
+            mFields.remove(tag);
+            return this;
+        }
+
+        Ifd next(long offset) {
+            mNext = offset;
+            return this;
+        }
+
+        Ifd next(Ifd ifd) {
+            mNextIfd = ifd;
+            return this;
+        }
+
+        private int entrySize() {
+            return mBigTiff ? 20 : 12;
+        }
+
+        private int inlineSize() {
+            return mBigTiff ? 8 : 4;
+        }
+
+        private int size() {
+            int size = (mBigTiff ? 16 : 6) + mFields.size() * entrySize();
+            for (Field field : mFields.values()) {
+                if (field.values != null && field.byteLength() > inlineSize()) {
+                    size += (field.byteLength() + 1) & ~1;
+                }
+            }
+            return size;
+        }
+
+        private void write(ByteBuffer out, long position, long next) {
+            out.position((int) position);
+            long extra = position + (mBigTiff ? 16 : 6) + mFields.size() * entrySize();
+            if (mBigTiff) {
+                out.putLong(mFields.size());
+            } else {
+                out.putShort((short) mFields.size());
+            }
+            for (Field field : mFields.values()) {
+                out.putShort((short) field.tag).putShort((short) field.type);
+                if (mBigTiff) {
+                    out.putLong(field.count);
+                } else {
+                    out.putInt((int) field.count);
+                }
+                int fieldPosition = out.position();
+                if (field.values == null) {
+                    putOffset(out, field.valueOffset);
+                } else if (field.byteLength() <= inlineSize()) {
+                    putValues(out, field);
+                    out.position(fieldPosition + inlineSize());
+                } else {
+                    putOffset(out, extra);
+                    int entryEnd = out.position();
+                    out.position((int) extra);
+                    putValues(out, field);
+                    extra += (field.byteLength() + 1) & ~1;
+                    out.position(entryEnd);
+                }
+            }
+            putOffset(out, next);
+        }
+
+        private void putOffset(ByteBuffer out, long offset) {
+            if (mBigTiff) {
+                out.putLong(offset);
+            } else {
+                out.putInt((int) offset);
+            }
+        }
+
+        private void putValues(ByteBuffer out, Field field) {
+            for (long value : field.values) {
+                switch (TiffFile.typeSize(field.type)) {
+                    case 1:
+                        out.put((byte) value);
+                        break;
+                    case 2:
+                        out.putShort((short) value);
+                        break;
+                    case 4:
+                        out.putInt((int) value);
+                        break;
+                    default:
+                        out.putLong(value);
+                        break;
+                }
+            }
+        }
+    }
+
+    private static final class Field {
+        final int tag;
+        final int type;
+        final long count;
+        final long[] values;
+        final long valueOffset;
+
+        Field(int tag, int type, long count, long[] values, long valueOffset) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.values = values;
+            this.valueOffset = valueOffset;
+        }
+
+        int byteLength() {
+            return (int) (TiffFile.typeSize(type) * count);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.ntx.converttiff;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TiffStripReaderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void uncompressed_readsRowsFromTheMapping() throws IOException {
+        assertDecodes(false, TiffStripReader.COMPRESSION_NONE, 1, 1, 37, 23, 5);
+        assertDecodes(false, TiffStripReader.COMPRESSION_NONE, 1, 3, 37, 23, 23);
+        assertDecodes(true, TiffStripReader.COMPRESSION_NONE, 1, 4, 37, 23, 7);
+    }
+
+    @Test
+    public void lzw_decodes() throws IOException {
+        assertDecodes(false, TiffStripReader.COMPRESSION_LZW, 1, 1, 64, 40, 8);
+        assertDecodes(false, TiffStripReader.COMPRESSION_LZW, 1, 2, 33, 17, 17);
+        assertDecodes(true, TiffStripReader.COMPRESSION_LZW, 1, 3, 50, 31, 6);
+    }
+
+    @Test
+    public void lzw_growsCodesAndClearsTheTable() throws IOException {
+        // Noise fills the 4096-entry table several times within one strip.
+        assertDecodes(false, TiffStripReader.COMPRESSION_LZW, 1, 3, 300, 100, 100);
+    }
+
+    @Test
+    public void deflate_decodesBothTagValues() throws IOException {
+        assertDecodes(false, TiffStripReader.COMPRESSION_ADOBE_DEFLATE, 1, 3, 41, 29, 10);
+        assertDecodes(true, TiffStripReader.COMPRESSION_DEFLATE, 1, 1, 41, 29, 29);
+    }
+
+    @Test
+    public void packBits_decodes() throws IOException {
+        assertDecodes(false, TiffStripReader.COMPRESSION_PACKBITS, 1, 1, 130, 20, 3);
+        assertDecodes(true, TiffStripReader.COMPRESSION_PACKBITS, 1, 4, 45, 12, 12);
+    }
+
+    @Test
+    public void horizontalPredictor_isUndone() throws IOException {
+        assertDecodes(false, TiffStripReader.COMPRESSION_LZW, 2, 3, 40, 20, 7);
+        assertDecodes(false, TiffStripReader.COMPRESSION_ADOBE_DEFLATE, 2, 1, 40, 20, 20);
+        assertDecodes(false, TiffStripReader.COMPRESSION_NONE, 2, 2, 40, 20, 4);
+    }
+
+    @Test
+    public void truncatedStrips_fail() throws IOException {
+        assertTruncatedStripFails(TiffStripReader.COMPRESSION_LZW, 1);
+        assertTruncatedStripFails(TiffStripReader.COMPRESSION_ADOBE_DEFLATE, 1);
+        assertTruncatedStripFails(TiffStripReader.COMPRESSION_PACKBITS, 1);
+        assertTruncatedStripFails(TiffStripReader.COMPRESSION_NONE, 2);
+    }
+
+    @Test
+    public void whiteIsZero_isInverted() throws IOException {
+        byte[] pixels = {0, 1, (byte) 254, (byte) 255};
+        TiffBuilder builder = new TiffBuilder(false);
+        builder.addImage(4, 1, 1, 1, TiffStripReader.COMPRESSION_NONE, new byte[][]{pixels})
+                .tag(TiffFile.TAG_PHOTOMETRIC, TiffFile.TYPE_SHORT, TiffStripReader.PHOTOMETRIC_WHITE_IS_ZERO);
+        TiffFile tiff = TiffFile.open(builder.write(mFolder.newFile()));
+        try {
+            int[] row = new int[4];
+            reader(tiff).readRow(0, row, 0, 0, 1, 4);
+            assertArrayEquals(new int[]{0xFFFFFFFF, 0xFFFEFEFE, 0xFF010101, 0xFF000000}, row);
+        } finally {
+            tiff.close();
+        }
+    }
+
+    @Test
+    public void readRow_subsamples() throws IOException {
+        int width = 20;
+        int height = 9;
+        byte[] pixels = pixels(width, height, 3, new Random(7));
+        TiffBuilder builder = new TiffBuilder(false);
+        builder.addImage(width, height, 3, 4, TiffStripReader.COMPRESSION_PACKBITS,
+                encodeStrips(TiffStripReader.COMPRESSION_PACKBITS, 1, width, height, 3, 4, pixels));
+        TiffFile tiff = TiffFile.open(builder.write(mFolder.newFile()));
+        try {
+            TiffStripReader reader = reader(tiff);
+            int[] row = new int[5];
+            reader.readRow(6, row, 0, 1, 4, 5);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(expectedPixel(pixels, (6 * width + 1 + i * 4) * 3, 3), row[i]);
+            }
+        } finally {
+            tiff.close();
+        }
+    }
+
+    private void assertDecodes(boolean bigTiff, int compression, int predictor, int samplesPerPixel,
+                               int width, int height, int rowsPerStrip) throws IOException {
+        byte[] pixels = pixels(width, height, samplesPerPixel, new Random(width * 31 + height));
+        TiffBuilder builder = new TiffBuilder(bigTiff);
+        builder.addImage(width, height, samplesPerPixel, rowsPerStrip, compression,
+                encodeStrips(compression, predictor, width, height, samplesPerPixel, rowsPerStrip, pixels))
+                .tag(TiffFile.TAG_PREDICTOR, TiffFile.TYPE_SHORT, predictor);
+        TiffFile tiff = TiffFile.open(builder.write(mFolder.newFile()));
+        try {
+            assertEquals(bigTiff, tiff.isBigTiff());
+            TiffStripReader reader = reader(tiff);
+            assertEquals(width, reader.getWidth());
+            assertEquals(height, reader.getHeight());
+
+            int[] row = new int[width];
+            int[] expected = new int[width];
+            // Bottom-up, so strips are reloaded rather than read in order.
+            for (int y = height - 1; y >= 0; y--) {
+                reader.readRow(y, row, 0, 0, 1, width);
+                for (int x = 0; x < width; x++) {
+                    expected[x] = expectedPixel(pixels, (y * width + x) * samplesPerPixel, samplesPerPixel);
+                }
+                assertArrayEquals("row " + y, expected, row);
+            }
+            reader.releaseBuffers();
+        } finally {
+            tiff.close();
+        }
+    }
+
+    /**
+     * Cuts the second strip in half after the first has been read, so a
+     * decoder that stops early would leave the first strip's pixels behind.
+     */
+    private void assertTruncatedStripFails(int compression, int predictor) throws IOException {
+        int width = 40;
+        int height = 20;
+        byte[] pixels = pixels(width, height, 3, new Random(3));
+        byte[][] strips = encodeStrips(compression, predictor, width, height, 3, 10, pixels);
+        strips[1] = Arrays.copyOf(strips[1], strips[1].length / 2);
+        TiffBuilder builder = new TiffBuilder(false);
+        builder.addImage(width, height, 3, 10, compression, strips)
+                .tag(TiffFile.TAG_PREDICTOR, TiffFile.TYPE_SHORT, predictor);
+        TiffFile tiff = TiffFile.open(builder.write(mFolder.newFile()));
+        try {
+            TiffStripReader reader = reader(tiff);
+            int[] row = new int[width];
+            reader.readRow(0, row, 0, 0, 1, width);
+            try {
+                reader.readRow(10, row, 0, 0, 1, width);
+                fail("expected IOException for compression " + compression);
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains("truncated"));
+            }
+        } finally {
+            tiff.close();
+        }
+    }
+
+    private static TiffStripReader reader(TiffFile tiff) throws IOException {
+        return new TiffStripReader(tiff, tiff.readDirectory(tiff.getFirstIfdOffset()));
+    }
+
+    /**
+     * Runs of flat color broken by noise, so every codec sees both.
+     */
+    private static byte[] pixels(int width, int height, int samplesPerPixel, Random random) {
+        byte[] pixels = new byte[width * height * samplesPerPixel];
+        for (int i = 0; i < pixels.length; i++) {
+            int x = i / samplesPerPixel % width;
+            pixels[i] = (byte) ((x / 8) % 3 == 0 ? random.nextInt(256) : (x / 8) * 17 + i % samplesPerPixel);
+        }
+        return pixels;
+    }
+
+    private static int expectedPixel(byte[] pixels, int p, int samplesPerPixel) {
+        if (samplesPerPixel < 3) {
+            int g = pixels[p] & 0xFF;
+            int a = samplesPerPixel == 2 ? pixels[p + 1] & 0xFF : 0xFF;
+            return (a << 24) | (g << 16) | (g << 8) | g;
+        }
+        int a = samplesPerPixel == 4 ? pixels[p + 3] & 0xFF : 0xFF;
+        return (a << 24) | ((pixels[p] & 0xFF) << 16) | ((pixels[p + 1] & 0xFF) << 8) | (pixels[p + 2] & 0xFF);
+    }
+
+    private static byte[][] encodeStrips(int compression, int predictor, int width, int height,
+                                         int samplesPerPixel, int rowsPerStrip, byte[] pixels) {
+        int rowBytes = width * samplesPerPixel;
+        int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+        byte[][] encoded = new byte[strips][];
+        for (int s = 0; s < strips; s++) {
+            int rows = Math.min(rowsPerStrip, height - s * rowsPerStrip);
+            byte[] strip = new byte[rows * rowBytes];
+            System.arraycopy(pixels, s * rowsPerStrip * rowBytes, strip, 0, strip.length);
+            if (predictor == 2) {
+                for (int r = 0; r < rows; r++) {
+                    for (int i = (r + 1) * rowBytes - 1; i >= r * rowBytes + samplesPerPixel; i--) {
+                        strip[i] -= strip[i - samplesPerPixel];
+                    }
+                }
+            }
+            switch (compression) {
+                case TiffStripReader.COMPRESSION_LZW:
+                    encoded[s] = encodeLzw(strip);
+                    break;
+                case TiffStripReader.COMPRESSION_ADOBE_DEFLATE:
+                case TiffStripReader.COMPRESSION_DEFLATE:
+                    encoded[s] = deflate(strip);
+                    break;
+                case TiffStripReader.COMPRESSION_PACKBITS:
+                    encoded[s] = packBits(strip);
+                    break;
+                default:
+                    encoded[s] = strip;
+                    break;
+            }
+        }
+        return encoded;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] packBits(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < data.length) {
+            int run = 1;
+            while (i + run < data.length && run < 128 && data[i + run] == data[i]) {
+                run++;
+            }
+            if (run >= 3) {
+                out.write(1 - run);
+                out.write(data[i]);
+                i += run;
+                continue;
+            }
+            int start = i;
+            while (i < data.length && i - start < 128
+                    && !(i + 2 < data.length && data[i] == data[i + 1] && data[i] == data[i + 2])) {
+                i++;
+            }
+            out.write(i - start - 1);
+            out.write(data, start, i - start);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * TIFF LZW as libtiff writes it: MSB-first codes that widen one code
+     * early, and a clear code before the table overflows.
+     */
+    private static byte[] encodeLzw(byte[] data) {
+        final int clearCode = 256;
+        final int endCode = 257;
+        BitWriter out = new BitWriter();
+        Map<Integer, Integer> table = new HashMap<>();
+        int codeLength = 9;
+        int next = 258;
+        out.write(clearCode, codeLength);
+
+        int prefix = -1;
+        for (byte b : data) {
+            int c = b & 0xFF;
+            if (prefix == -1) {
+                prefix = c;
+                continue;
+            }
+            Integer code = table.get((prefix << 8) | c);
+            if (code != null) {
+                prefix = code;
+                continue;
+            }
+            out.write(prefix, codeLength);
+            table.put((prefix << 8) | c, next++);
+            if (next == 4094) {
+                out.write(clearCode, codeLength);
+                table.clear();
+                codeLength = 9;
+                next = 258;
+            } else if (next > (1 << codeLength) - 1) {
+                codeLength++;
+            }
+            prefix = c;
+        }
+        if (prefix != -1) {
+            out.write(prefix, codeLength);
+            next++;
+            if (next > (1 << codeLength) - 1 && codeLength < 12) {
+                codeLength++;
+            }
+        }
+        out.write(endCode, codeLength);
+        return out.toByteArray();
+    }
+
+    private static final class BitWriter {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private int mBuffer;
+        private int mCount;
+
+        void write(int code, int length) {
+            mBuffer = (mBuffer << length) | code;
+            mCount += length;
+            while (mCount >= 8) {
+                mOut.write(mBuffer >>> (mCount - 8));
+                mCount -= 8;
+            }
+            mBuffer &= (1 << mCount) - 1;
+        }
+
+        byte[] toByteArray() {
+            if (mCount > 0) {
+                mOut.write(mBuffer << (8 - mCount));
+                mCount = 0;
+            }
+            return mOut.toByteArray();
+        }
+    }
+}
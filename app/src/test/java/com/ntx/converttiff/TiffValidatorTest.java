@@ -0,0 +1,260 @@
+package com.ntx.converttiff;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TiffValidatorTest {
+
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void validFile_passesBothPaths() throws IOException {
+        assertValid(gray(false), true);
+        assertValid(gray(false), false);
+        assertValid(gray(true), true);
+    }
+
+    @Test
+    public void badHeader_isRejectedOnOpen() throws IOException {
+        assertOpenFails(new byte[]{'I', 'I', 42}, TiffFormatException.Code.TRUNCATED_HEADER);
+        assertOpenFails(new byte[]{'X', 'X', 42, 0, 8, 0, 0, 0}, TiffFormatException.Code.BAD_BYTE_ORDER);
+        assertOpenFails(new byte[]{'I', 'I', 41, 0, 8, 0, 0, 0}, TiffFormatException.Code.BAD_VERSION);
+    }
+
+    @Test
+    public void noDirectory_isNoImage() throws IOException {
+        assertInvalid(new TiffBuilder(false), true, TiffFormatException.Code.NO_IMAGE);
+    }
+
+    @Test
+    public void directoryChain_isWalkedForLoopsAndBounds() throws IOException {
+        TiffBuilder loop = gray(false);
+        loop.addIfd().tag(TiffFile.TAG_IMAGE_WIDTH, TiffFile.TYPE_LONG, 1).next(loop.getIfd(0));
+        assertInvalid(loop, false, TiffFormatException.Code.IFD_LOOP);
+
+        TiffBuilder outside = gray(false);
+        outside.getIfd(0).next(1L << 20);
+        assertInvalid(outside, false, TiffFormatException.Code.IFD_OUT_OF_BOUNDS);
+
+        TiffBuilder firstOutside = gray(false);
+        firstOutside.setFirstIfdOffset(4);
+        assertInvalid(firstOutside, false, TiffFormatException.Code.IFD_OUT_OF_BOUNDS);
+    }
+
+    @Test
+    public void damagedLaterDirectory_isIgnored() throws IOException {
+        TiffBuilder builder = gray(false);
+        builder.addIfd()
+                .tag(TiffFile.TAG_IMAGE_WIDTH, TiffFile.TYPE_LONG, 0)
+                .tag(TiffFile.TAG_COMPRESSION, TiffFile.TYPE_SHORT, 99)
+                .rawTag(TiffFile.TAG_STRIP_OFFSETS, TiffFile.TYPE_LONG, 1000, 1L << 30);
+        assertValid(builder, true);
+        assertValid(builder, false);
+    }
+
+    @Test
+    public void tagValuesOutsideFile_areRejected() throws IOException {
+        TiffBuilder builder = gray(false);
+        builder.getIfd(0).rawTag(TiffFile.TAG_STRIP_BYTE_COUNTS, TiffFile.TYPE_LONG, 4, 1L << 20);
+        assertInvalid(builder, false, TiffFormatException.Code.TAG_OUT_OF_BOUNDS);
+
+        TiffBuilder hugeCount = gray(false);
+        hugeCount.getIfd(0).rawTag(TiffFile.TAG_STRIP_OFFSETS, TiffFile.TYPE_LONG, 0x7FFFFFFFL, 8);
+        assertInvalid(hugeCount, true, TiffFormatException.Code.TAG_OUT_OF_BOUNDS);
+    }
+
+    @Test
+    public void unknownTagsOutsideFile_areIgnored() throws IOException {
+        TiffBuilder builder = gray(false);
+        builder.getIfd(0).rawTag(305, TiffFile.TYPE_BYTE, 100, 1L << 20);
+        assertValid(builder, true);
+    }
+
+    @Test
+    public void missingSize_isRejected() throws IOException {
+        TiffBuilder builder = gray(false);
+        builder.getIfd(0).remove(TiffFile.TAG_IMAGE_WIDTH);
+        assertInvalid(builder, false, TiffFormatException.Code.MISSING_IMAGE_SIZE);
+        assertInvalid(builder, true, TiffFormatException.Code.MISSING_IMAGE_SIZE);
+    }
+
+    @Test
+    public void missingOffsets_isRejected() throws IOException {
+        TiffBuilder builder = gray(false);
+        builder.getIfd(0).remove(TiffFile.TAG_STRIP_OFFSETS);
+        assertInvalid(builder, false, TiffFormatException.Code.MISSING_DATA_OFFSETS);
+    }
+
+    @Test
+    public void missingByteCounts_isToleratedByLibraryOnly() throws IOException {
+        TiffBuilder builder = gray(false);
+        builder.getIfd(0).remove(TiffFile.TAG_STRIP_BYTE_COUNTS);
+        assertValid(builder, false);
+        assertInvalid(builder, true, TiffFormatException.Code.MISSING_DATA_OFFSETS);
+    }
+
+    @Test
+    public void shortOffsetArray_isToleratedByLibraryOnly() throws IOException {
+        TiffBuilder builder = gray(false);
+        builder.getIfd(0).tag(TiffFile.TAG_ROWS_PER_STRIP, TiffFile.TYPE_LONG, 1);
+        assertValid(builder, false);
+        assertInvalid(builder, true, TiffFormatException.Code.DATA_COUNT_MISMATCH);
+    }
+
+    @Test
+    public void extraOffsets_areNotRead() throws IOException {
+        TiffBuilder builder = gray(false);
+        TiffBuilder.Ifd ifd = builder.getIfd(0);
+        ifd.tag(TiffFile.TAG_STRIP_OFFSETS, TiffFile.TYPE_LONG, 8, 1L << 30, 1L << 30);
+        ifd.tag(TiffFile.TAG_STRIP_BYTE_COUNTS, TiffFile.TYPE_LONG, WIDTH * HEIGHT, 1, 1);
+        assertValid(builder, true);
+        assertValid(builder, false);
+    }
+
+    @Test
+    public void dataOutsideFile_isRejected() throws IOException {
+        TiffBuilder builder = gray(false);
+        builder.getIfd(0).tag(TiffFile.TAG_STRIP_BYTE_COUNTS, TiffFile.TYPE_LONG, 1L << 20);
+        assertInvalid(builder, false, TiffFormatException.Code.DATA_OUT_OF_BOUNDS);
+        assertInvalid(builder, true, TiffFormatException.Code.DATA_OUT_OF_BOUNDS);
+    }
+
+    @Test
+    public void compression_isCheckedAgainstTheDecoder() throws IOException {
+        TiffBuilder jpeg = gray(false);
+        jpeg.getIfd(0).tag(TiffFile.TAG_COMPRESSION, TiffFile.TYPE_SHORT, 7);
+        assertValid(jpeg, false);
+        assertInvalid(jpeg, true, TiffFormatException.Code.UNSUPPORTED_COMPRESSION);
+
+        TiffBuilder unknown = gray(false);
+        unknown.getIfd(0).tag(TiffFile.TAG_COMPRESSION, TiffFile.TYPE_SHORT, 99);
+        assertInvalid(unknown, false, TiffFormatException.Code.UNSUPPORTED_COMPRESSION);
+
+        TiffBuilder predictor = gray(false);
+        predictor.getIfd(0).tag(TiffFile.TAG_PREDICTOR, TiffFile.TYPE_SHORT, 3);
+        assertInvalid(predictor, true, TiffFormatException.Code.UNSUPPORTED_COMPRESSION);
+    }
+
+    @Test
+    public void photometric_isCheckedAgainstTheDecoder() throws IOException {
+        TiffBuilder palette = gray(false);
+        palette.getIfd(0).tag(TiffFile.TAG_PHOTOMETRIC, TiffFile.TYPE_SHORT, 3);
+        assertValid(palette, false);
+        assertInvalid(palette, true, TiffFormatException.Code.UNSUPPORTED_PHOTOMETRIC);
+
+        TiffBuilder unknown = gray(false);
+        unknown.getIfd(0).tag(TiffFile.TAG_PHOTOMETRIC, TiffFile.TYPE_SHORT, 99);
+        assertInvalid(unknown, false, TiffFormatException.Code.UNSUPPORTED_PHOTOMETRIC);
+    }
+
+    @Test
+    public void sgiLog_isLeftToTheLibrary() throws IOException {
+        TiffBuilder sgiLog = gray(false);
+        sgiLog.getIfd(0)
+                .tag(TiffFile.TAG_COMPRESSION, TiffFile.TYPE_SHORT, 34676)
+                .tag(TiffFile.TAG_PHOTOMETRIC, TiffFile.TYPE_SHORT, 32844);
+        assertValid(sgiLog, false);
+        assertInvalid(sgiLog, true, TiffFormatException.Code.UNSUPPORTED_COMPRESSION);
+    }
+
+    @Test
+    public void stripReaderLayouts_areCheckedUpFront() throws IOException {
+        TiffBuilder tiled = gray(false);
+        tiled.getIfd(0)
+                .tag(TiffFile.TAG_TILE_WIDTH, TiffFile.TYPE_LONG, WIDTH)
+                .tag(TiffFile.TAG_TILE_LENGTH, TiffFile.TYPE_LONG, HEIGHT)
+                .tag(TiffFile.TAG_TILE_OFFSETS, TiffFile.TYPE_LONG, 8)
+                .tag(TiffFile.TAG_TILE_BYTE_COUNTS, TiffFile.TYPE_LONG, WIDTH * HEIGHT);
+        assertValid(tiled, false);
+        assertInvalid(tiled, true, TiffFormatException.Code.UNSUPPORTED_LAYOUT);
+
+        TiffBuilder planar = gray(false);
+        planar.getIfd(0).tag(TiffFile.TAG_PLANAR_CONFIGURATION, TiffFile.TYPE_SHORT, 2);
+        assertInvalid(planar, true, TiffFormatException.Code.UNSUPPORTED_LAYOUT);
+    }
+
+    @Test
+    public void stripReaderSampleFormats_areCheckedUpFront() throws IOException {
+        TiffBuilder sixteenBit = gray(false);
+        sixteenBit.getIfd(0).tag(TiffFile.TAG_BITS_PER_SAMPLE, TiffFile.TYPE_SHORT, 16);
+        assertValid(sixteenBit, false);
+        assertInvalid(sixteenBit, true, TiffFormatException.Code.UNSUPPORTED_SAMPLE_FORMAT);
+
+        TiffBuilder rgbOneSample = gray(false);
+        rgbOneSample.getIfd(0).tag(TiffFile.TAG_PHOTOMETRIC, TiffFile.TYPE_SHORT, TiffStripReader.PHOTOMETRIC_RGB);
+        assertInvalid(rgbOneSample, true, TiffFormatException.Code.UNSUPPORTED_SAMPLE_FORMAT);
+
+        TiffBuilder fiveSamples = gray(false);
+        fiveSamples.getIfd(0).tag(TiffFile.TAG_SAMPLES_PER_PIXEL, TiffFile.TYPE_SHORT, 5);
+        assertInvalid(fiveSamples, true, TiffFormatException.Code.UNSUPPORTED_SAMPLE_FORMAT);
+    }
+
+    @Test
+    public void stripReaderConstructor_throwsCodes() throws IOException {
+        TiffBuilder builder = gray(false);
+        builder.getIfd(0).tag(TiffFile.TAG_PLANAR_CONFIGURATION, TiffFile.TYPE_SHORT, 2);
+        TiffFile tiff = TiffFile.open(builder.write(mFolder.newFile()));
+        try {
+            new TiffStripReader(tiff, tiff.readDirectory(tiff.getFirstIfdOffset()));
+            fail("expected " + TiffFormatException.Code.UNSUPPORTED_LAYOUT);
+        } catch (TiffFormatException e) {
+            assertEquals(TiffFormatException.Code.UNSUPPORTED_LAYOUT, e.code);
+        } finally {
+            tiff.close();
+        }
+    }
+
+    private static TiffBuilder gray(boolean bigTiff) {
+        return TiffBuilder.image(bigTiff, WIDTH, HEIGHT, 1, HEIGHT, new byte[WIDTH * HEIGHT]);
+    }
+
+    private void assertValid(TiffBuilder builder, boolean stripDecode) throws IOException {
+        TiffFile tiff = TiffFile.open(builder.write(mFolder.newFile()));
+        try {
+            TiffValidator.checkImage(tiff, TiffValidator.checkStructure(tiff), stripDecode);
+        } finally {
+            tiff.close();
+        }
+    }
+
+    private void assertInvalid(TiffBuilder builder, boolean stripDecode, TiffFormatException.Code code)
+            throws IOException {
+        TiffFile tiff = TiffFile.open(builder.write(mFolder.newFile()));
+        try {
+            TiffValidator.checkImage(tiff, TiffValidator.checkStructure(tiff), stripDecode);
+            fail("expected " + code);
+        } catch (TiffFormatException e) {
+            assertEquals(code, e.code);
+        } finally {
+            tiff.close();
+        }
+    }
+
+    private void assertOpenFails(byte[] header, TiffFormatException.Code code) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(header);
+        } finally {
+            fos.close();
+        }
+        try {
+            TiffFile.open(file).close();
+            fail("expected " + code);
+        } catch (TiffFormatException e) {
+            assertEquals(code, e.code);
+        }
+    }
+}